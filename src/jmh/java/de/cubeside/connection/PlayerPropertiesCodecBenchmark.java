@@ -0,0 +1,99 @@
+package de.cubeside.connection;
+
+import de.cubeside.connection.util.ByteArrayReader;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of the messages of the player properties channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlayerPropertiesCodecBenchmark {
+    @Param({ "100", "2000" })
+    public int players;
+
+    @Param({ "15" })
+    public int propertiesPerPlayer;
+
+    private LinkedHashMap<UUID, Map<String, String>> properties;
+    private UUID uuid;
+    private byte[] setMessage;
+    private byte[] deleteMessage;
+    private byte[] multisetMessage;
+    private final ByteArrayReader reader = new ByteArrayReader();
+
+    @Setup
+    public void setup() {
+        properties = new LinkedHashMap<>();
+        for (int i = 0; i < players; i++) {
+            LinkedHashMap<String, String> values = new LinkedHashMap<>();
+            for (int j = 0; j < propertiesPerPlayer; j++) {
+                values.put("plugin.property" + j, "value-" + i + "-" + j);
+            }
+            properties.put(UUID.randomUUID(), values);
+        }
+        uuid = properties.keySet().iterator().next();
+        setMessage = PlayerPropertiesCodec.encodeSet(uuid, "plugin.property0", "some value");
+        deleteMessage = PlayerPropertiesCodec.encodeDelete(uuid, "plugin.property0");
+        multisetMessage = PlayerPropertiesCodec.encodeMultiSet(properties);
+    }
+
+    @Benchmark
+    public byte[] encodeSet() {
+        return PlayerPropertiesCodec.encodeSet(uuid, "plugin.property0", "some value");
+    }
+
+    @Benchmark
+    public byte[] encodeDelete() {
+        return PlayerPropertiesCodec.encodeDelete(uuid, "plugin.property0");
+    }
+
+    @Benchmark
+    public byte[] encodeMultiSet() {
+        return PlayerPropertiesCodec.encodeMultiSet(properties);
+    }
+
+    @Benchmark
+    public void decodeSet(Blackhole blackhole) throws IOException {
+        ByteArrayReader in = reader.reset(setMessage);
+        blackhole.consume(in.readByte());
+        blackhole.consume(in.readUUID());
+        blackhole.consume(in.readUTF());
+        blackhole.consume(in.readUTF());
+    }
+
+    @Benchmark
+    public void decodeDelete(Blackhole blackhole) throws IOException {
+        ByteArrayReader in = reader.reset(deleteMessage);
+        blackhole.consume(in.readByte());
+        blackhole.consume(in.readUUID());
+        blackhole.consume(in.readUTF());
+    }
+
+    @Benchmark
+    public void decodeMultiSet(Blackhole blackhole) throws IOException {
+        ByteArrayReader in = reader.reset(multisetMessage);
+        blackhole.consume(in.readByte());
+        PlayerPropertiesCodec.decodeMultiSet(in, (player, values) -> blackhole.consume(values));
+    }
+}
@@ -0,0 +1,93 @@
+package de.cubeside.connection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concurrent reads and writes on the {@link PlayerPropertyStore}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlayerPropertyStoreBenchmark {
+    @Param({ "2000" })
+    public int players;
+
+    @Param({ "15" })
+    public int propertiesPerPlayer;
+
+    private PlayerPropertyStore store;
+    private UUID[] uuids;
+    private String[] keys;
+    private String[] values;
+
+    @Setup
+    public void setup() {
+        store = new PlayerPropertyStore();
+        uuids = new UUID[players];
+        keys = new String[propertiesPerPlayer];
+        values = new String[64];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "plugin.property" + i;
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = "value-" + i;
+        }
+        for (int i = 0; i < players; i++) {
+            uuids[i] = UUID.randomUUID();
+            HashMap<String, String> properties = new HashMap<>();
+            for (String key : keys) {
+                properties.put(key, values[i % values.length]);
+            }
+            store.setAll(uuids[i], properties);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String read() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return store.get(uuids[random.nextInt(uuids.length)], keys[random.nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Map<String, String> readAll() {
+        return store.get(uuids[ThreadLocalRandom.current().nextInt(uuids.length)]);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public String readWhileWriting() {
+        return read();
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public PropertySnapshot write() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return store.set(uuids[random.nextInt(uuids.length)], keys[random.nextInt(keys.length)], values[random.nextInt(values.length)]);
+    }
+}
@@ -0,0 +1,163 @@
+package de.cubeside.connection;
+
+import de.cubeside.connection.util.TaskQueue;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the client task queue with several producers and one consumer thread, compared to the synchronized
+ * deque it replaced. Producers wait when the consumer falls too far behind, so the measured rate is the rate at which
+ * tasks can be run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaskQueueBenchmark {
+    private static final int MAX_BACKLOG = 1 << 16;
+    private static final int BACKLOG_CHECK_INTERVAL = 1024;
+    private static final Runnable TASK = () -> {
+    };
+
+    private TaskQueue queue;
+    private volatile boolean running;
+    private Thread consumer;
+
+    private SynchronizedQueue synchronizedQueue;
+    private Thread synchronizedConsumer;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        int added;
+    }
+
+    @Setup(Level.Iteration)
+    public void startConsumers() {
+        queue = new TaskQueue();
+        running = true;
+        consumer = new Thread(() -> {
+            Runnable[] batch = new Runnable[256];
+            while (true) {
+                int count = queue.drain(batch, batch.length);
+                if (count == 0) {
+                    if (!running) {
+                        return;
+                    }
+                    queue.await();
+                    continue;
+                }
+                for (int i = 0; i < count; i++) {
+                    Runnable task = batch[i];
+                    batch[i] = null;
+                    task.run();
+                }
+            }
+        }, "TaskQueue consumer");
+        consumer.start();
+
+        synchronizedQueue = new SynchronizedQueue();
+        synchronizedConsumer = new Thread(synchronizedQueue::run, "Synchronized consumer");
+        synchronizedConsumer.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopConsumers() throws InterruptedException {
+        running = false;
+        queue.wakeUp();
+        consumer.join();
+        synchronizedQueue.stop();
+        synchronizedConsumer.join();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void taskQueue(Producer producer) {
+        if (++producer.added % BACKLOG_CHECK_INTERVAL == 0) {
+            while (queue.size() > MAX_BACKLOG) {
+                Thread.onSpinWait();
+            }
+        }
+        queue.add(TASK);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void synchronizedDeque(Producer producer) {
+        if (++producer.added % BACKLOG_CHECK_INTERVAL == 0) {
+            while (synchronizedQueue.size() > MAX_BACKLOG) {
+                Thread.onSpinWait();
+            }
+        }
+        synchronizedQueue.add(TASK);
+    }
+
+    /**
+     * The queue that was used by {@link GlobalClientVelocity} before {@link TaskQueue}.
+     */
+    private static class SynchronizedQueue {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private final Object sync = new Object();
+        private boolean running = true;
+
+        void add(Runnable r) {
+            synchronized (sync) {
+                boolean wasEmpty = tasks.isEmpty();
+                tasks.addLast(r);
+                if (wasEmpty) {
+                    sync.notifyAll();
+                }
+            }
+        }
+
+        int size() {
+            synchronized (sync) {
+                return tasks.size();
+            }
+        }
+
+        void stop() {
+            synchronized (sync) {
+                running = false;
+                sync.notifyAll();
+            }
+        }
+
+        void run() {
+            Runnable task = null;
+            while (true) {
+                synchronized (sync) {
+                    task = tasks.pollFirst();
+                    if (task == null) {
+                        if (running) {
+                            try {
+                                sync.wait();
+                            } catch (InterruptedException e) {
+                                // ignore
+                            }
+                        } else {
+                            return;
+                        }
+                    }
+                }
+                if (task != null) {
+                    task.run();
+                }
+            }
+        }
+    }
+}
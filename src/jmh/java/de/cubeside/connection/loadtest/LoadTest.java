@@ -0,0 +1,246 @@
+package de.cubeside.connection.loadtest;
+
+import de.cubeside.connection.PropertyValue;
+import de.cubeside.connection.util.Histogram;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test of the message processing without network: N proxies with M players each are connected to a
+ * {@link LocalHub}. Each proxy has a driver thread that starts with a join storm, then changes properties and sends
+ * data messages at a fixed rate, and once a second lets a part of its players quit and rejoin at once. At the end all
+ * proxies must have the same players and properties, and the latency percentiles are checked against a limit.
+ * <p>
+ * Run with: mvn -Pbenchmarks test-compile exec:exec -Dbenchmark.main=de.cubeside.connection.loadtest.LoadTest
+ * <p>
+ * Options are system properties, passed with -Dbenchmark.jvmArgs="-Dloadtest.seconds=30 ...": loadtest.proxies,
+ * loadtest.players (per proxy), loadtest.seconds, loadtest.rate (operations per second and proxy),
+ * loadtest.stormPercent (players per quit storm) and loadtest.maxP99Micros (fails the run if the p99 latency of a
+ * message type is higher, 250 ms by default, 0 to disable). The default limit is about twice the p99 latency of the join
+ * storm at the start on a small machine.
+ */
+public class LoadTest {
+    private static final String[] PROPERTIES = { "rank", "coins", "afk", "server", "level" };
+    private static final byte[] DATA = new byte[1024];
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final String[] TYPE_NAMES = { "join", "quit", "properties", "data" };
+
+    private final int proxyCount = Integer.getInteger("loadtest.proxies", 4);
+    private final int playersPerProxy = Integer.getInteger("loadtest.players", 500);
+    private final int seconds = Integer.getInteger("loadtest.seconds", 10);
+    private final int rate = Integer.getInteger("loadtest.rate", 5000);
+    private final int stormPercent = Integer.getInteger("loadtest.stormPercent", 10);
+    private final long maxP99Micros = Long.getLong("loadtest.maxP99Micros", 250_000);
+
+    private final LocalHub hub = new LocalHub();
+    private final ArrayList<SimulatedProxy> proxies = new ArrayList<>();
+    private final LongAdder operations = new LongAdder();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean passed = new LoadTest().run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    public boolean run() throws InterruptedException {
+        System.out.println("Load test: " + proxyCount + " proxies, " + playersPerProxy + " players per proxy, " + rate + " operations per second and proxy, " + seconds + " seconds");
+        for (int i = 0; i < proxyCount; i++) {
+            SimulatedProxy proxy = new SimulatedProxy("proxy" + i, hub);
+            proxies.add(proxy);
+            hub.addProxy(proxy);
+        }
+        if (!awaitReady()) {
+            System.out.println("FAILED: the proxies did not finish the version negotiation after " + TimeUnit.NANOSECONDS.toSeconds(CONNECT_TIMEOUT_NANOS) + " s");
+            for (SimulatedProxy proxy : proxies) {
+                proxy.shutdown();
+            }
+            hub.shutdown();
+            return false;
+        }
+
+        ArrayList<Thread> drivers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < proxyCount; i++) {
+            SimulatedProxy proxy = proxies.get(i);
+            long seed = i;
+            Thread driver = new Thread(() -> drive(proxy, seed), "Driver " + proxy.getName());
+            driver.start();
+            drivers.add(driver);
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running = false;
+        for (Thread driver : drivers) {
+            driver.join();
+        }
+        boolean drained = awaitDrained();
+        long elapsed = System.nanoTime() - start;
+
+        long messages = 0;
+        long failures = 0;
+        for (SimulatedProxy proxy : proxies) {
+            messages += proxy.getReceivedCount();
+            failures += proxy.getFailureCount();
+            proxy.shutdown();
+        }
+        hub.shutdown();
+
+        double elapsedSeconds = elapsed / 1e9;
+        System.out.printf("%d operations, %d messages processed in %.1f s: %.0f operations/s, %.0f messages/s%n", operations.sum(), messages, elapsedSeconds, operations.sum() / elapsedSeconds, messages / elapsedSeconds);
+        System.out.printf("%-12s %10s %10s %10s %10s %10s%n", "latency", "count", "p50 us", "p99 us", "p999 us", "max us");
+        boolean passed = drained && failures == 0;
+        for (int type = 0; type < LocalHub.MESSAGE_TYPES; type++) {
+            Histogram latency = hub.getLatency(type);
+            long p99 = latency.getPercentile(0.99) / 1000;
+            System.out.printf("%-12s %10d %10d %10d %10d %10d%n", TYPE_NAMES[type], latency.getCount(), latency.getPercentile(0.5) / 1000, p99, latency.getPercentile(0.999) / 1000, latency.getMax() / 1000);
+            if (maxP99Micros > 0 && p99 > maxP99Micros) {
+                System.out.println("FAILED: p99 latency of " + TYPE_NAMES[type] + " messages is " + p99 + " us, the limit is " + maxP99Micros + " us");
+                passed = false;
+            }
+        }
+        if (failures > 0) {
+            System.out.println("FAILED: " + failures + " exceptions while handling messages");
+        }
+        if (!drained) {
+            System.out.println("FAILED: the queues were not drained after " + TimeUnit.NANOSECONDS.toSeconds(DRAIN_TIMEOUT_NANOS) + " s");
+        } else if (!checkConsistency()) {
+            passed = false;
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    private void drive(SimulatedProxy proxy, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        UUID[] players = new UUID[playersPerProxy];
+        boolean[] online = new boolean[playersPerProxy];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = new UUID(seed, i);
+            proxy.join(players[i], proxy.getName() + "_" + i);
+            online[i] = true;
+        }
+        operations.add(players.length);
+
+        long nanosPerOperation = TimeUnit.SECONDS.toNanos(1) / rate;
+        long next = System.nanoTime();
+        long nextStorm = next + TimeUnit.SECONDS.toNanos(1);
+        while (running) {
+            long now = System.nanoTime();
+            if (now - nextStorm >= 0) {
+                int count = players.length * stormPercent / 100;
+                int first = random.nextInt(players.length);
+                for (int i = 0; i < count; i++) {
+                    int player = (first + i) % players.length;
+                    proxy.quit(players[player]);
+                    online[player] = false;
+                }
+                for (int i = 0; i < count; i++) {
+                    int player = (first + i) % players.length;
+                    proxy.join(players[player], proxy.getName() + "_" + player);
+                    online[player] = true;
+                }
+                operations.add(count * 2);
+                nextStorm += TimeUnit.SECONDS.toNanos(1);
+            }
+            if (now - next < 0) {
+                LockSupport.parkNanos(Math.min(next - now, 100_000));
+                continue;
+            }
+            // operations that are due are run at once, so the rate is kept when the driver falls behind
+            while (next - now <= 0 && running) {
+                int player = random.nextInt(players.length);
+                if (online[player]) {
+                    int action = random.nextInt(10);
+                    if (action < 3) {
+                        proxy.sendData(DATA);
+                    } else if (action < 6) {
+                        int value = random.nextInt(1000);
+                        proxy.setProperty(players[player], "coins", Integer.toString(value), PropertyValue.ofInt(value));
+                    } else {
+                        String property = PROPERTIES[random.nextInt(PROPERTIES.length)];
+                        proxy.setProperty(players[player], property, "value" + random.nextInt(100), null);
+                    }
+                    operations.increment();
+                }
+                next += nanosPerOperation;
+            }
+        }
+    }
+
+    private boolean awaitReady() {
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+        while (System.nanoTime() - deadline < 0) {
+            boolean ready = true;
+            for (SimulatedProxy proxy : proxies) {
+                ready &= proxy.isReady(proxyCount);
+            }
+            if (ready) {
+                return true;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        return false;
+    }
+
+    private boolean awaitDrained() {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        int idleChecks = 0;
+        while (System.nanoTime() - deadline < 0) {
+            boolean idle = hub.getQueueSize() == 0;
+            for (SimulatedProxy proxy : proxies) {
+                idle &= proxy.getQueueSize() == 0;
+            }
+            // the hub may be forwarding a message while its queue is already empty
+            idleChecks = idle ? idleChecks + 1 : 0;
+            if (idleChecks >= 3) {
+                return true;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        return false;
+    }
+
+    /**
+     * Checks that all proxies have the same online players and the same properties.
+     */
+    private boolean checkConsistency() {
+        SimulatedProxy first = proxies.get(0);
+        Map<UUID, Long> expectedDigests = getDigests(first);
+        boolean consistent = true;
+        for (SimulatedProxy proxy : proxies) {
+            if (!proxy.getOnlinePlayers().equals(first.getOnlinePlayers())) {
+                System.out.println("FAILED: the online players of " + proxy.getName() + " differ from " + first.getName());
+                consistent = false;
+            }
+            Map<UUID, Long> digests = getDigests(proxy);
+            if (!digests.equals(expectedDigests)) {
+                int differences = 0;
+                for (UUID uuid : expectedDigests.keySet()) {
+                    if (!Objects.equals(digests.get(uuid), expectedDigests.get(uuid))) {
+                        differences++;
+                    }
+                }
+                System.out.println("FAILED: the properties of " + proxy.getName() + " differ from " + first.getName() + " (" + differences + " players, " + digests.size() + " vs " + expectedDigests.size() + " players with properties)");
+                consistent = false;
+            }
+        }
+        if (consistent) {
+            System.out.println("All proxies have the same " + first.getOnlinePlayers().size() + " players and the properties of " + expectedDigests.size() + " players");
+        }
+        return consistent;
+    }
+
+    private static Map<UUID, Long> getDigests(SimulatedProxy proxy) {
+        HashMap<UUID, Long> digests = new HashMap<>();
+        proxy.getProperties().forEach((uuid, snapshot) -> digests.put(uuid, snapshot.getDigest()));
+        return digests;
+    }
+}
@@ -0,0 +1,111 @@
+package de.cubeside.connection.loadtest;
+
+import de.cubeside.connection.util.Histogram;
+import de.cubeside.connection.util.TaskLoop;
+import de.cubeside.connection.util.TaskQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process stand-in for the hub. Messages are forwarded to all other proxies on a single hub thread, in the order
+ * they were sent, like the hub forwards them over its connections.
+ */
+public class LocalHub {
+    public static final int TYPE_JOIN = 0;
+    public static final int TYPE_QUIT = 1;
+    public static final int TYPE_PROPERTIES = 2;
+    public static final int TYPE_DATA = 3;
+    public static final int MESSAGE_TYPES = 4;
+
+    private static final int TASK_BATCH_SIZE = 256;
+
+    public static final class Message {
+        final SimulatedProxy source;
+        final int type;
+        final byte[] data;
+        /**
+         * The {@link System#nanoTime()} when the message was sent.
+         */
+        final long sentAt;
+
+        Message(SimulatedProxy source, int type, byte[] data, long sentAt) {
+            this.source = source;
+            this.type = type;
+            this.data = data;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final CopyOnWriteArrayList<SimulatedProxy> proxies = new CopyOnWriteArrayList<>();
+    private final TaskQueue tasks = new TaskQueue();
+    private final TaskLoop hubLoop;
+    private final Histogram[] latency = new Histogram[MESSAGE_TYPES];
+
+    public LocalHub() {
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new Histogram();
+        }
+        hubLoop = new TaskLoop(tasks, TASK_BATCH_SIZE, new Histogram(), new Histogram(), Throwable::printStackTrace);
+        Thread hubThread = new Thread(hubLoop, "Hub");
+        hubThread.setDaemon(true);
+        hubThread.start();
+    }
+
+    /**
+     * Connects a proxy. The proxies already connected and the new proxy are told about each other, like the connection
+     * library tells the servers when another server connects.
+     */
+    public void addProxy(SimulatedProxy proxy) {
+        tasks.add(() -> {
+            for (SimulatedProxy other : proxies) {
+                other.serverConnected(proxy.getName());
+                proxy.serverConnected(other.getName());
+            }
+            proxies.add(proxy);
+        });
+    }
+
+    /**
+     * @return the nanoseconds from sending a message of this type until a proxy processed it, over all proxies
+     */
+    public Histogram getLatency(int type) {
+        return latency[type];
+    }
+
+    public long getQueueSize() {
+        return tasks.size();
+    }
+
+    /**
+     * Sends a message to all proxies except the source. May be called from any thread, messages sent by one thread
+     * are delivered in order.
+     */
+    public void broadcast(SimulatedProxy source, int type, byte[] data) {
+        Message message = new Message(source, type, data, System.nanoTime());
+        tasks.add(() -> {
+            for (SimulatedProxy proxy : proxies) {
+                if (proxy != source) {
+                    proxy.deliver(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a message to the proxy with the given name. Messages sent by one thread are delivered in order, also together
+     * with the messages broadcast by that thread.
+     */
+    public void send(SimulatedProxy source, String target, int type, byte[] data) {
+        Message message = new Message(source, type, data, System.nanoTime());
+        tasks.add(() -> {
+            for (SimulatedProxy proxy : proxies) {
+                if (proxy.getName().equals(target)) {
+                    proxy.deliver(message);
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        hubLoop.stop();
+    }
+}
@@ -0,0 +1,222 @@
+package de.cubeside.connection.loadtest;
+
+import de.cubeside.connection.PlayerPropertyStore;
+import de.cubeside.connection.PropertyTransport;
+import de.cubeside.connection.PropertyUpdateExchange;
+import de.cubeside.connection.PropertyValue;
+import de.cubeside.connection.PropertyWriteQueue;
+import de.cubeside.connection.util.ByteArrayReader;
+import de.cubeside.connection.util.ByteArrayWriter;
+import de.cubeside.connection.util.Histogram;
+import de.cubeside.connection.util.StripedExecutor;
+import de.cubeside.connection.util.TaskLoop;
+import de.cubeside.connection.util.TaskQueue;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One proxy of the load test. It uses the same parts as the plugin: a {@link TaskLoop} runs the client thread, received
+ * messages are handled on a {@link StripedExecutor} with the source server as key, property changes are coalesced by a
+ * {@link PropertyWriteQueue} and sent from the client thread, and the properties are exchanged by a
+ * {@link PropertyUpdateExchange} and kept in a {@link PlayerPropertyStore}. Only the hub connection and the presence
+ * messages of the connection library are simulated.
+ */
+public class SimulatedProxy {
+    private static final int TASK_BATCH_SIZE = 256;
+    private static final int WORKER_THREADS = 2;
+    private static final int MAX_DICTIONARY_SIZE = 4096;
+    private static final long COALESCE_MILLIS = 5;
+
+    private static final ThreadLocal<ByteArrayReader> READER = ThreadLocal.withInitial(ByteArrayReader::new);
+
+    private final String name;
+    private final LocalHub hub;
+    private final TaskQueue tasks = new TaskQueue();
+    private final TaskLoop clientLoop;
+    private final StripedExecutor workers;
+
+    private final PlayerPropertyStore properties = new PlayerPropertyStore();
+    private final PropertyUpdateExchange updateExchange;
+    private final ScheduledExecutorService scheduler;
+    private final PropertyWriteQueue writeQueue;
+    private final ConcurrentHashMap<UUID, String> onlinePlayers = new ConcurrentHashMap<>();
+    private final Set<String> connectedServers = ConcurrentHashMap.newKeySet();
+    // only used by the driver thread
+    private final ByteArrayWriter writer = new ByteArrayWriter();
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public SimulatedProxy(String name, LocalHub hub) {
+        this.name = name;
+        this.hub = hub;
+        clientLoop = new TaskLoop(tasks, TASK_BATCH_SIZE, new Histogram(), new Histogram(), this::fail);
+        Thread clientThread = new Thread(clientLoop, "Client " + name);
+        clientThread.setDaemon(true);
+        clientThread.start();
+        workers = new StripedExecutor("Worker " + name, WORKER_THREADS, false, this::fail);
+        updateExchange = new PropertyUpdateExchange(new LocalTransport(), MAX_DICTIONARY_SIZE, warning -> System.out.println(name + ": " + warning));
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Scheduler " + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        writeQueue = new PropertyWriteQueue(COALESCE_MILLIS, tasks::add, task -> scheduler.schedule(task, COALESCE_MILLIS, TimeUnit.MILLISECONDS), (writes, typedWrites, expiryWrites) -> updateExchange.sendUpdate(writes, typedWrites));
+    }
+
+    private class LocalTransport implements PropertyTransport {
+        @Override
+        public void broadcast(byte[] data) {
+            hub.broadcast(SimulatedProxy.this, LocalHub.TYPE_PROPERTIES, data);
+        }
+
+        @Override
+        public void send(String server, byte[] data) {
+            hub.send(SimulatedProxy.this, server, LocalHub.TYPE_PROPERTIES, data);
+        }
+
+        @Override
+        public void resync(String server) {
+            // the digest sync of the plugin is not simulated, the consistency check reports the missing changes
+            System.out.println(name + ": " + server + " requested a resync");
+        }
+    }
+
+    private void fail(Throwable t) {
+        failures.increment();
+        t.printStackTrace();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public PlayerPropertyStore getProperties() {
+        return properties;
+    }
+
+    public Map<UUID, String> getOnlinePlayers() {
+        return onlinePlayers;
+    }
+
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    public long getQueueSize() {
+        // a scheduled flush is not counted, the drain check waits longer than the coalescing window
+        return tasks.size() + workers.getQueueSize();
+    }
+
+    /**
+     * @return true if all other proxies are connected and announced that they understand v2 updates
+     */
+    public boolean isReady(int proxyCount) {
+        if (connectedServers.size() < proxyCount - 1) {
+            return false;
+        }
+        for (String server : connectedServers) {
+            if (updateExchange.getVersion(server) < 2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+        clientLoop.stop();
+        workers.shutdown();
+    }
+
+    /**
+     * Called by the hub from its thread when another proxy connected, handled on the client thread.
+     */
+    void serverConnected(String server) {
+        tasks.add(() -> {
+            connectedServers.add(server);
+            updateExchange.onServerConnected(server);
+        });
+    }
+
+    /**
+     * Called by the hub from its thread, the message is handled on the worker of its source like received data.
+     */
+    void deliver(LocalHub.Message message) {
+        // presence is handled on the worker too, so it stays ordered with the property changes of the same source
+        workers.execute(message.source.getName(), () -> process(message));
+    }
+
+    private void process(LocalHub.Message message) {
+        ByteArrayReader in = READER.get().reset(message.data);
+        try {
+            if (message.type == LocalHub.TYPE_JOIN) {
+                onlinePlayers.put(in.readUUID(), in.readString());
+            } else if (message.type == LocalHub.TYPE_QUIT) {
+                UUID uuid = in.readUUID();
+                onlinePlayers.remove(uuid);
+                properties.remove(uuid);
+            } else if (message.type == LocalHub.TYPE_PROPERTIES) {
+                int type = in.readUnsignedByte();
+                if (!updateExchange.receive(message.source.getName(), type, in, (uuid, changes, typedChanges) -> properties.setAll(uuid, changes, typedChanges))) {
+                    throw new IOException("Unexpected property message type " + type);
+                }
+            }
+            // data messages are only counted
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not parse message from " + message.source.getName(), ex);
+        }
+        hub.getLatency(message.type).record(System.nanoTime() - message.sentAt);
+        received.increment();
+    }
+
+    /**
+     * Presence is sent from the client thread like the connection library does, so it is ordered with the property
+     * changes.
+     */
+    public void join(UUID uuid, String playerName) {
+        onlinePlayers.put(uuid, playerName);
+        writer.reset();
+        writer.writeUUID(uuid);
+        writer.writeString(playerName);
+        byte[] data = writer.toByteArray();
+        tasks.add(() -> hub.broadcast(this, LocalHub.TYPE_JOIN, data));
+    }
+
+    public void quit(UUID uuid) {
+        onlinePlayers.remove(uuid);
+        properties.remove(uuid);
+        writeQueue.removePlayer(uuid);
+        writer.reset();
+        writer.writeUUID(uuid);
+        byte[] data = writer.toByteArray();
+        tasks.add(() -> hub.broadcast(this, LocalHub.TYPE_QUIT, data));
+    }
+
+    /**
+     * Sets a property and queues it like PlayerPropertiesImplementation does, it is sent as v2 update once the coalescing
+     * window ends. Must only be called once the proxy is {@link #isReady(int) ready}.
+     */
+    public void setProperty(UUID uuid, String property, String value, PropertyValue typedValue) {
+        Map<String, String> values = Collections.singletonMap(property, value);
+        Map<String, PropertyValue> typedValues = typedValue == null ? null : Collections.singletonMap(property, typedValue);
+        properties.setAll(uuid, values, typedValues == null ? Collections.emptyMap() : typedValues);
+        writeQueue.add(uuid, values, typedValues, null, false);
+    }
+
+    public void sendData(byte[] data) {
+        hub.broadcast(this, LocalHub.TYPE_DATA, data);
+    }
+}
@@ -0,0 +1,179 @@
+package de.cubeside.connection;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import de.cubeside.connection.util.Histogram;
+import de.cubeside.connection.util.StripedExecutor;
+import de.cubeside.connection.util.TaskQueue;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime statistics of the global client: the task queue, the time tasks wait and run, the worker queues, the traffic and
+ * handler time per channel, and the dispatch latency of events fired on the Velocity event bus. All times are in
+ * nanoseconds.
+ */
+public class ClientMetrics {
+    public static class ChannelStats {
+        private final LongAdder messagesReceived = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final LongAdder messagesSent = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final Histogram handlerTime = new Histogram();
+        final LongAdder spooled = new LongAdder();
+        final LongAdder spoolReplaced = new LongAdder();
+        final LongAdder spoolDropped = new LongAdder();
+        final LongAdder spoolRejected = new LongAdder();
+
+        public long getMessagesReceived() {
+            return messagesReceived.sum();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        public long getMessagesSent() {
+            return messagesSent.sum();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        public Histogram getHandlerTime() {
+            return handlerTime;
+        }
+
+        /**
+         * Returns the number of messages that were added to the outbound spool while the client was not connected.
+         */
+        public long getMessagesSpooled() {
+            return spooled.sum();
+        }
+
+        /**
+         * Returns the number of spooled messages that were replaced by a newer message with the same key.
+         */
+        public long getMessagesSpoolReplaced() {
+            return spoolReplaced.sum();
+        }
+
+        /**
+         * Returns the number of spooled messages that were dropped because the spool was full.
+         */
+        public long getMessagesSpoolDropped() {
+            return spoolDropped.sum();
+        }
+
+        /**
+         * Returns the number of messages that were not spooled because the spool was full.
+         */
+        public long getMessagesSpoolRejected() {
+            return spoolRejected.sum();
+        }
+    }
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final TaskQueue tasks;
+    private final StripedExecutor workers;
+    private final Histogram taskWaitTime = new Histogram();
+    private final Histogram taskRunTime = new Histogram();
+    private final Histogram eventDispatchTime = new Histogram();
+    private final ConcurrentHashMap<String, ChannelStats> channels = new ConcurrentHashMap<>();
+
+    public ClientMetrics(TaskQueue tasks, StripedExecutor workers) {
+        this.tasks = tasks;
+        this.workers = workers;
+    }
+
+    public Histogram getTaskWaitTime() {
+        return taskWaitTime;
+    }
+
+    public Histogram getTaskRunTime() {
+        return taskRunTime;
+    }
+
+    public Histogram getEventDispatchTime() {
+        return eventDispatchTime;
+    }
+
+    public ChannelStats getChannelStats(String channel) {
+        return channels.computeIfAbsent(channel, c -> new ChannelStats());
+    }
+
+    public Map<String, ChannelStats> getAllChannelStats() {
+        return new TreeMap<>(channels);
+    }
+
+    void recordReceived(String channel, int bytes, long handlerNanos) {
+        ChannelStats stats = getChannelStats(channel);
+        stats.messagesReceived.increment();
+        stats.bytesReceived.add(bytes);
+        if (handlerNanos >= 0) {
+            stats.handlerTime.record(handlerNanos);
+        }
+    }
+
+    void recordSent(String channel, int bytes) {
+        ChannelStats stats = getChannelStats(channel);
+        stats.messagesSent.increment();
+        stats.bytesSent.add(bytes);
+    }
+
+    /**
+     * Returns all statistics as a JSON document, as saved by the stats command.
+     */
+    public String toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("timestamp", System.currentTimeMillis());
+        JsonObject taskQueue = new JsonObject();
+        taskQueue.addProperty("size", tasks.size());
+        taskQueue.addProperty("added", tasks.getAddedCount());
+        taskQueue.addProperty("taken", tasks.getTakenCount());
+        json.add("taskQueue", taskQueue);
+        json.add("taskWaitNanos", toJson(taskWaitTime));
+        json.add("taskRunNanos", toJson(taskRunTime));
+        JsonObject workerStats = new JsonObject();
+        workerStats.addProperty("threads", workers.getThreadCount());
+        workerStats.addProperty("size", workers.getQueueSize());
+        workerStats.addProperty("taken", workers.getTakenCount());
+        json.add("workers", workerStats);
+        json.add("workerWaitNanos", toJson(workers.getWaitTime()));
+        json.add("workerRunNanos", toJson(workers.getRunTime()));
+        json.add("eventDispatchNanos", toJson(eventDispatchTime));
+        JsonObject channelStats = new JsonObject();
+        for (Entry<String, ChannelStats> e : getAllChannelStats().entrySet()) {
+            ChannelStats stats = e.getValue();
+            JsonObject channel = new JsonObject();
+            channel.addProperty("messagesReceived", stats.getMessagesReceived());
+            channel.addProperty("bytesReceived", stats.getBytesReceived());
+            channel.addProperty("messagesSent", stats.getMessagesSent());
+            channel.addProperty("bytesSent", stats.getBytesSent());
+            channel.addProperty("spooled", stats.getMessagesSpooled());
+            channel.addProperty("spoolReplaced", stats.getMessagesSpoolReplaced());
+            channel.addProperty("spoolDropped", stats.getMessagesSpoolDropped());
+            channel.addProperty("spoolRejected", stats.getMessagesSpoolRejected());
+            channel.add("handlerNanos", toJson(stats.getHandlerTime()));
+            channelStats.add(e.getKey(), channel);
+        }
+        json.add("channels", channelStats);
+        return GSON.toJson(json);
+    }
+
+    private static JsonObject toJson(Histogram histogram) {
+        JsonObject json = new JsonObject();
+        json.addProperty("count", histogram.getCount());
+        json.addProperty("mean", Math.round(histogram.getMean()));
+        json.addProperty("p50", histogram.getPercentile(0.5));
+        json.addProperty("p99", histogram.getPercentile(0.99));
+        json.addProperty("max", histogram.getMax());
+        return json;
+    }
+}
@@ -5,11 +5,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map.Entry;
 import java.util.logging.Level;
 
 import com.google.inject.Inject;
 import com.velocitypowered.api.command.CommandManager;
 import com.velocitypowered.api.command.CommandMeta;
+import com.velocitypowered.api.command.CommandSource;
 import com.velocitypowered.api.command.SimpleCommand;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
@@ -17,6 +20,11 @@ import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.plugin.Plugin;
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
 import com.velocitypowered.api.proxy.ProxyServer;
+import de.cubeside.connection.ClientMetrics.ChannelStats;
+import de.cubeside.connection.util.Histogram;
+import de.cubeside.connection.util.StripedExecutor;
+import de.cubeside.connection.util.TaskQueue;
+import net.kyori.adventure.text.Component;
 import org.slf4j.Logger;
 import org.spongepowered.configurate.CommentedConfigurationNode;
 import org.spongepowered.configurate.yaml.YamlConfigurationLoader;
@@ -43,14 +51,15 @@ public class GlobalClientPlugin {
     public void onProxyInitialization(ProxyInitializeEvent event) {
         saveDefaultConfig();
         globalClient = new GlobalClientVelocity(this);
+        propertiesAPI = new PlayerPropertiesImplementation(this);
 
         reconnectClient();
 
-        propertiesAPI = new PlayerPropertiesImplementation(this);
-
         CommandManager commandManager = server.getCommandManager();
         CommandMeta commandMeta = commandManager.metaBuilder("velocityglobalclientreload").plugin(this).build();
         commandManager.register(commandMeta, new ReloadCommand());
+        CommandMeta statsCommandMeta = commandManager.metaBuilder("velocityglobalclientstats").plugin(this).build();
+        commandManager.register(statsCommandMeta, new StatsCommand());
     }
 
     private void saveDefaultConfig() {
@@ -74,6 +83,9 @@ public class GlobalClientPlugin {
 
     @Subscribe
     public void onProxyShutdown(ProxyShutdownEvent event) {
+        if (propertiesAPI != null) {
+            propertiesAPI.shutdown();
+        }
         if (globalClient != null) {
             globalClient.shutdown();
         }
@@ -95,6 +107,48 @@ public class GlobalClientPlugin {
         }
     }
 
+    public class StatsCommand implements SimpleCommand {
+        @Override
+        public void execute(Invocation invocation) {
+            CommandSource source = invocation.source();
+            if (!source.hasPermission("globalclient.stats")) {
+                return;
+            }
+            ClientMetrics metrics = globalClient.getMetrics();
+            TaskQueue tasks = globalClient.getTaskQueue();
+            source.sendMessage(Component.text("Task queue: " + tasks.size() + " waiting, " + tasks.getTakenCount() + " run"));
+            source.sendMessage(Component.text("Task wait: " + formatNanos(metrics.getTaskWaitTime()) + ", run: " + formatNanos(metrics.getTaskRunTime())));
+            StripedExecutor workers = globalClient.getWorkers();
+            source.sendMessage(Component.text("Workers: " + workers.getThreadCount() + " threads, " + workers.getQueueSize() + " waiting, " + workers.getTakenCount() + " run"));
+            source.sendMessage(Component.text("Worker wait: " + formatNanos(workers.getWaitTime()) + ", run: " + formatNanos(workers.getRunTime())));
+            source.sendMessage(Component.text("Event dispatch: " + formatNanos(metrics.getEventDispatchTime())));
+            OutboundSpool spool = globalClient.getSpool();
+            synchronized (spool) {
+                source.sendMessage(Component.text("Outbound spool: " + spool.size() + " messages, " + spool.getBytes() + "/" + spool.getMaxBytes() + " bytes"));
+            }
+            for (Entry<String, ChannelStats> e : metrics.getAllChannelStats().entrySet()) {
+                ChannelStats stats = e.getValue();
+                source.sendMessage(Component.text(e.getKey() + ": in " + stats.getMessagesReceived() + " (" + stats.getBytesReceived() + " bytes), out " + stats.getMessagesSent() + " (" + stats.getBytesSent() + " bytes), handler " + formatNanos(stats.getHandlerTime())));
+            }
+            Path statsFile = dataDirectory.resolve("stats.json");
+            try {
+                Files.writeString(statsFile, metrics.toJson());
+                source.sendMessage(Component.text("Saved to " + statsFile));
+            } catch (IOException e) {
+                logger.error("Could not save stats", e);
+            }
+        }
+
+        private String formatNanos(Histogram histogram) {
+            return String.format(Locale.ROOT, "n=%d mean=%.1fus p99=%.1fus max=%.1fus", histogram.getCount(), histogram.getMean() / 1000.0, histogram.getPercentile(0.99) / 1000.0, histogram.getMax() / 1000.0);
+        }
+
+        @Override
+        public boolean hasPermission(Invocation invocation) {
+            return invocation.source().hasPermission("globalclient.stats");
+        }
+    }
+
     public void reconnectClient() {
         String account = configuration.node("client", "account").getString();
         String password = configuration.node("client", "password").getString();
@@ -107,10 +161,22 @@ public class GlobalClientPlugin {
         return globalClient;
     }
 
+    public GlobalClientVelocity getGlobalClient() {
+        return globalClient;
+    }
+
     public PlayerPropertiesAPI getPropertiesAPI() {
         return propertiesAPI;
     }
 
+    public CommentedConfigurationNode getConfiguration() {
+        return configuration;
+    }
+
+    public Path getDataDirectory() {
+        return dataDirectory;
+    }
+
     public ProxyServer getServer() {
         return server;
     }
@@ -1,5 +1,6 @@
 package de.cubeside.connection;
 
+import com.google.common.base.Preconditions;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.DisconnectEvent;
 import com.velocitypowered.api.event.connection.PostLoginEvent;
@@ -9,61 +10,153 @@ import de.cubeside.connection.event.GlobalPlayerDisconnectedEvent;
 import de.cubeside.connection.event.GlobalPlayerJoinedEvent;
 import de.cubeside.connection.event.GlobalServerConnectedEvent;
 import de.cubeside.connection.event.GlobalServerDisconnectedEvent;
-import java.util.ArrayDeque;
+import de.cubeside.connection.util.Compression;
+import de.cubeside.connection.util.StripedExecutor;
+import de.cubeside.connection.util.TaskLoop;
+import de.cubeside.connection.util.TaskQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class GlobalClientVelocity extends GlobalClient {
     private final GlobalClientPlugin plugin;
     private boolean stoppingServer;
 
-    protected final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
-    protected final Object sync = new Object();
-    protected boolean running = true;
+    private static final int TASK_BATCH_SIZE = 256;
+    private static final int PRESENCE_CHUNK_SIZE = 200;
+
+    /**
+     * Compressed data is sent on the channel name with this suffix, so it can never be mistaken for uncompressed data.
+     */
+    private static final String COMPRESSED_CHANNEL_SUFFIX = "#deflate";
+    /**
+     * Servers send a message on this channel to every server they connect to, if they can receive compressed data.
+     */
+    private static final String COMPRESSION_CHANNEL = "GlobalClient.compression";
+
+    protected final TaskQueue tasks = new TaskQueue();
+    protected final StripedExecutor workers;
+    protected final ClientMetrics metrics;
+    protected final TaskLoop mainLoop;
+
+    protected final ConcurrentHashMap<String, GlobalDataHandler[]> dataHandlers = new ConcurrentHashMap<>();
+
+    private static final GlobalPresenceListener[] NO_PRESENCE_LISTENERS = new GlobalPresenceListener[0];
+    protected volatile GlobalPresenceListener[] presenceListeners = NO_PRESENCE_LISTENERS;
+    protected final GlobalPlayerIndex playerIndex = new GlobalPlayerIndex();
+    protected final GlobalRpc rpc;
+
+    protected final Set<String> compressedChannels = ConcurrentHashMap.newKeySet();
+    protected final Set<String> compressionServers = ConcurrentHashMap.newKeySet();
+    private final int compressionThreshold;
+
+    protected final OutboundSpool spool;
+    private volatile boolean spoolActive;
+    /**
+     * True while a thread sends the spooled data. Guarded by the spool.
+     */
+    private boolean replaying;
+
+    private final long presenceCoalesceMillis;
+    private final int presenceMaxPerFlush;
+    /**
+     * The latest presence change of each player that was not yet applied. null means the player left.
+     */
+    private final LinkedHashMap<UUID, Player> pendingPresence = new LinkedHashMap<>();
+    private boolean presenceFlushScheduled;
 
     public GlobalClientVelocity(GlobalClientPlugin connectionPlugin) {
         super(null);
         plugin = connectionPlugin;
-        plugin.getServer().getScheduler().buildTask(plugin, new MainThread()).schedule();
+        int workerThreads = plugin.getConfiguration().node("client", "worker-threads").getInt(0);
+        if (workerThreads <= 0) {
+            workerThreads = Runtime.getRuntime().availableProcessors();
+        }
+        boolean virtualThreads = plugin.getConfiguration().node("client", "virtual-threads").getBoolean(false);
+        workers = new StripedExecutor("GlobalClient Worker", workerThreads, virtualThreads, t -> plugin.getLogger().error("Exception in worker thread", t));
+        metrics = new ClientMetrics(tasks, workers);
+        compressionThreshold = plugin.getConfiguration().node("compression", "threshold").getInt(1024);
+        spool = new OutboundSpool(plugin.getConfiguration().node("spool", "max-bytes").getLong(4 * 1024 * 1024), metrics);
+        presenceCoalesceMillis = plugin.getConfiguration().node("client", "presence-coalesce-millis").getLong(5);
+        presenceMaxPerFlush = Math.max(1, plugin.getConfiguration().node("client", "presence-max-per-flush").getInt(500));
+        registerPresenceListener(playerIndex);
+        registerDataHandler(COMPRESSION_CHANNEL, e -> compressionServers.add(e.getSource().getName()));
+        rpc = new GlobalRpc(plugin, this);
+        mainLoop = new TaskLoop(tasks, TASK_BATCH_SIZE, metrics.getTaskWaitTime(), metrics.getTaskRunTime(), t -> plugin.getLogger().error("Exception in Client thread", t));
+        Thread.ofPlatform().name("GlobalClient").daemon().start(mainLoop);
+        plugin.getServer().getScheduler().buildTask(plugin, () -> {
+            if (spoolActive) {
+                replaySpool();
+            }
+        }).repeat(1, TimeUnit.SECONDS).schedule();
         plugin.getServer().getEventManager().register(plugin, this);
     }
 
-    private class MainThread implements Runnable {
-        @Override
-        public void run() {
-            Runnable task = null;
-            while (true) {
-                synchronized (sync) {
-                    task = tasks.pollFirst();
-                    if (task == null) {
-                        if (running) {
-                            try {
-                                sync.wait();
-                            } catch (InterruptedException e) {
-                                // ignore
-                            }
-                        } else {
-                            return;
-                        }
-                    }
-                }
-                if (task != null) {
-                    try {
-                        task.run();
-                    } catch (Throwable t) {
-                        plugin.getLogger().error("Exception in Client thread", t);
-                    }
-                }
-            }
-        }
+    protected void schedule(Runnable r) {
+        tasks.add(r);
     }
 
-    protected void schedule(Runnable r) {
-        synchronized (sync) {
-            boolean wasEmpty = tasks.isEmpty();
-            tasks.addLast(r);
-            if (wasEmpty) {
-                sync.notifyAll();
-            }
-        }
+    /**
+     * Runs a task in the client thread. Tasks are run in the order they were added.
+     */
+    public void runInClientThread(Runnable r) {
+        schedule(r);
+    }
+
+    /**
+     * Runs a task on a worker thread. Tasks with equal keys, for example the same player UUID, are run in the order they
+     * were added, tasks with different keys may run in parallel. Received data is handled on the workers with the name of
+     * the source server as key.
+     */
+    public void runInWorker(Object key, Runnable r) {
+        Preconditions.checkNotNull(key, "key");
+        Preconditions.checkNotNull(r, "r");
+        workers.execute(key, r);
+    }
+
+    public TaskQueue getTaskQueue() {
+        return tasks;
+    }
+
+    public StripedExecutor getWorkers() {
+        return workers;
+    }
+
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the request/response layer for calls between servers.
+     */
+    public GlobalRpc getRpc() {
+        return rpc;
+    }
+
+    /**
+     * Returns the indexes of the players in the network by name and by server.
+     */
+    public GlobalPlayerIndex getPlayerIndex() {
+        return playerIndex;
+    }
+
+    /**
+     * Fires an event on the Velocity event bus and records the time until all listeners were called.
+     */
+    public void fireEvent(Object event) {
+        long start = System.nanoTime();
+        plugin.getServer().getEventManager().fire(event).thenRun(() -> metrics.getEventDispatchTime().record(System.nanoTime() - start));
     }
 
     @Override
@@ -72,13 +165,39 @@ public class GlobalClientVelocity extends GlobalClient {
             @Override
             public void run() {
                 GlobalClientVelocity.super.setServer(host, port, account, password);
-                for (Player p : plugin.getServer().getAllPlayers()) {
-                    onPlayerOnline(p.getUniqueId(), p.getUsername(), System.currentTimeMillis());
-                }
+                registerOnlinePlayers();
             }
         });
     }
 
+    /**
+     * Registers all players currently online on this proxy. The players are registered in chunks of
+     * {@value #PRESENCE_CHUNK_SIZE}, each in its own client task, so other tasks can run in between. Each player is
+     * still announced with its own presence message, the hub protocol has no message for many players.
+     */
+    protected void registerOnlinePlayers() {
+        List<Player> players = new ArrayList<>(plugin.getServer().getAllPlayers());
+        long joinTime = System.currentTimeMillis();
+        for (int start = 0; start < players.size(); start += PRESENCE_CHUNK_SIZE) {
+            List<Player> chunk = players.subList(start, Math.min(start + PRESENCE_CHUNK_SIZE, players.size()));
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    GlobalServer thisServer = getThisServer();
+                    for (Player p : chunk) {
+                        if (!p.isActive()) {
+                            continue; // already left the proxy
+                        }
+                        GlobalPlayer existing = getPlayer(p.getUniqueId());
+                        if (existing == null || thisServer == null || !existing.isOnServer(thisServer)) {
+                            onPlayerOnline(p.getUniqueId(), p.getUsername(), joinTime);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
     @Override
     protected void runInMainThread(Runnable r) {
         if (!stoppingServer) {
@@ -86,66 +205,404 @@ public class GlobalClientVelocity extends GlobalClient {
         }
     }
 
+    /**
+     * Registers a handler that receives all data sent on the given channel. The handler is called on a worker thread, in
+     * order for the data of each source server and in parallel for different servers, so it must be thread safe and must
+     * not block. Data for channels with at least one handler is no longer fired as {@link GlobalDataEvent}.
+     */
+    public void registerDataHandler(String channel, GlobalDataHandler handler) {
+        Preconditions.checkNotNull(channel, "channel");
+        Preconditions.checkNotNull(handler, "handler");
+        dataHandlers.compute(channel, (theChannel, handlers) -> {
+            if (handlers == null) {
+                return new GlobalDataHandler[] { handler };
+            }
+            GlobalDataHandler[] newHandlers = Arrays.copyOf(handlers, handlers.length + 1);
+            newHandlers[handlers.length] = handler;
+            return newHandlers;
+        });
+    }
+
+    public void unregisterDataHandler(String channel, GlobalDataHandler handler) {
+        Preconditions.checkNotNull(channel, "channel");
+        Preconditions.checkNotNull(handler, "handler");
+        dataHandlers.computeIfPresent(channel, (theChannel, handlers) -> {
+            for (int i = 0; i < handlers.length; i++) {
+                if (handlers[i] == handler) {
+                    if (handlers.length == 1) {
+                        return null;
+                    }
+                    GlobalDataHandler[] newHandlers = new GlobalDataHandler[handlers.length - 1];
+                    System.arraycopy(handlers, 0, newHandlers, 0, i);
+                    System.arraycopy(handlers, i + 1, newHandlers, i, handlers.length - i - 1);
+                    return newHandlers;
+                }
+            }
+            return handlers;
+        });
+    }
+
+    /**
+     * Registers a listener that is called on the client thread for every player and server presence change.
+     */
+    public synchronized void registerPresenceListener(GlobalPresenceListener listener) {
+        Preconditions.checkNotNull(listener, "listener");
+        GlobalPresenceListener[] listeners = Arrays.copyOf(presenceListeners, presenceListeners.length + 1);
+        listeners[presenceListeners.length] = listener;
+        presenceListeners = listeners;
+    }
+
+    public synchronized void unregisterPresenceListener(GlobalPresenceListener listener) {
+        Preconditions.checkNotNull(listener, "listener");
+        GlobalPresenceListener[] listeners = presenceListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                GlobalPresenceListener[] newListeners = new GlobalPresenceListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                presenceListeners = newListeners;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Enables compression for a channel. Data sent on the channel that is at least <code>compression.threshold</code>
+     * bytes long is compressed if all receiving servers announced that they can inflate it, otherwise it is sent
+     * unchanged. Received compressed data is inflated when it is read, on all channels. Data sent directly with
+     * {@link GlobalServer#sendData(String, byte[])} or {@link GlobalPlayer#sendData(String, byte[])} is never compressed,
+     * use {@link #sendData(GlobalServer, String, byte[])} and {@link #sendData(GlobalPlayer, String, byte[])} instead.
+     */
+    public void enableCompression(String channel) {
+        Preconditions.checkNotNull(channel, "channel");
+        compressedChannels.add(channel);
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @Override
+    public void sendData(String channel, byte[] data) {
+        sendData(channel, data, false);
+    }
+
+    /**
+     * Sets how data sent on a channel is kept while the client is not connected to the hub. Channels without a policy
+     * use {@link OutboundSpool.Policy#DROP_OLDEST}.
+     *
+     * @see OutboundSpool#setPolicy(String, OutboundSpool.Policy, java.util.function.Function)
+     */
+    public void setSpoolPolicy(String channel, OutboundSpool.Policy policy, Function<byte[], Object> keyExtractor) {
+        spool.setPolicy(channel, policy, keyExtractor);
+    }
+
+    /**
+     * Returns true if the client is logged in at the hub, so sent data is delivered.
+     */
+    public boolean isConnected() {
+        return getThisServer() != null;
+    }
+
+    /**
+     * Sends the data, or adds it to the outbound spool if the client is not connected. Spooled data is sent in order
+     * before any new data once the connection is back.
+     *
+     * @throws IllegalStateException
+     *             if the client is not connected, the spool is full and the channel uses
+     *             {@link OutboundSpool.Policy#REJECT}
+     */
+    @Override
+    public void sendData(String channel, byte[] data, boolean sendToRestricted) {
+        if (stoppingServer || (!spoolActive && isConnected())) {
+            sendNow(channel, data, sendToRestricted);
+            return;
+        }
+        synchronized (spool) {
+            // while the spool is replayed new data is spooled too, so it is not sent before the older data
+            spoolActive = true;
+            spool.add(channel, spool.getKey(channel, data), data, sendToRestricted);
+        }
+        replaySpool();
+    }
+
+    private void sendNow(String channel, byte[] data, boolean sendToRestricted) {
+        byte[] compressed = null;
+        if (compressedChannels.contains(channel) && data.length >= compressionThreshold && canCompressFor(getServers())) {
+            compressed = Compression.compress(data, compressionThreshold);
+        }
+        if (compressed != null) {
+            metrics.recordSent(channel, compressed.length);
+            super.sendData(channel + COMPRESSED_CHANNEL_SUFFIX, compressed, sendToRestricted);
+        } else {
+            metrics.recordSent(channel, data.length);
+            super.sendData(channel, data, sendToRestricted);
+        }
+    }
+
+    /**
+     * Sends data to a single server, compressed like {@link #sendData(String, byte[])} if the channel has compression
+     * enabled and the server can inflate it. The data is not spooled.
+     */
+    public void sendData(GlobalServer target, String channel, byte[] data) {
+        Preconditions.checkNotNull(target, "target");
+        Preconditions.checkNotNull(channel, "channel");
+        Preconditions.checkNotNull(data, "data");
+        byte[] compressed = null;
+        if (compressedChannels.contains(channel) && compressionServers.contains(target.getName())) {
+            compressed = Compression.compress(data, compressionThreshold);
+        }
+        if (compressed != null) {
+            metrics.recordSent(channel, compressed.length);
+            target.sendData(channel + COMPRESSED_CHANNEL_SUFFIX, compressed);
+        } else {
+            metrics.recordSent(channel, data.length);
+            target.sendData(channel, data);
+        }
+    }
+
+    /**
+     * Sends data to the servers of a player, compressed like {@link #sendData(String, byte[])} if the channel has
+     * compression enabled and all servers of the player can inflate it. The data is not spooled.
+     */
+    public void sendData(GlobalPlayer target, String channel, byte[] data) {
+        Preconditions.checkNotNull(target, "target");
+        Preconditions.checkNotNull(channel, "channel");
+        Preconditions.checkNotNull(data, "data");
+        byte[] compressed = null;
+        if (compressedChannels.contains(channel) && data.length >= compressionThreshold && canCompressFor(target.getCurrentServers())) {
+            compressed = Compression.compress(data, compressionThreshold);
+        }
+        if (compressed != null) {
+            metrics.recordSent(channel, compressed.length);
+            target.sendData(channel + COMPRESSED_CHANNEL_SUFFIX, compressed);
+        } else {
+            metrics.recordSent(channel, data.length);
+            target.sendData(channel, data);
+        }
+    }
+
+    /**
+     * Returns true if all of the servers except this one announced that they can inflate compressed data.
+     */
+    private boolean canCompressFor(Collection<GlobalServer> servers) {
+        GlobalServer thisServer = getThisServer();
+        for (GlobalServer server : servers) {
+            if (server != thisServer && !compressionServers.contains(server.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends all spooled data if the client is connected. The data is sent without holding the lock of the spool. Only
+     * one thread sends at a time and data spooled meanwhile is sent by that thread too, so the order is kept. Returns
+     * at once if another thread is already sending.
+     */
+    protected void replaySpool() {
+        boolean first = true;
+        while (true) {
+            List<OutboundSpool.SpooledMessage> messages;
+            synchronized (spool) {
+                if (replaying || !isConnected()) {
+                    return;
+                }
+                if (spool.isEmpty()) {
+                    spoolActive = false;
+                    return;
+                }
+                messages = spool.takeAll();
+                replaying = true;
+            }
+            try {
+                if (first) {
+                    plugin.getLogger().info("Sending " + messages.size() + " spooled messages");
+                    first = false;
+                }
+                for (OutboundSpool.SpooledMessage message : messages) {
+                    sendNow(message.getChannel(), message.getData(), message.isSendToRestricted());
+                }
+            } finally {
+                synchronized (spool) {
+                    replaying = false;
+                }
+            }
+        }
+    }
+
+    public OutboundSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Called on the client thread. The data is handled on the worker of the source server, so data from one server keeps
+     * its order while the client thread is free for the next message.
+     */
     @Override
     protected void processData(GlobalServer source, String channel, GlobalPlayer targetPlayer, GlobalServer targetServer, byte[] data) {
-        plugin.getServer().getEventManager().fire(new GlobalDataEvent(source, targetPlayer, channel, data));
+        workers.execute(source.getName(), () -> handleData(source, channel, targetPlayer, data));
+    }
+
+    private void handleData(GlobalServer source, String channel, GlobalPlayer targetPlayer, byte[] data) {
+        boolean compressed = channel.endsWith(COMPRESSED_CHANNEL_SUFFIX);
+        if (compressed) {
+            channel = channel.substring(0, channel.length() - COMPRESSED_CHANNEL_SUFFIX.length());
+        }
+        GlobalDataEvent event;
+        try {
+            event = new GlobalDataEvent(source, targetPlayer, channel, data, compressed);
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().error("Invalid data on compressed channel " + channel + " from " + source.getName(), e);
+            return;
+        }
+        GlobalDataHandler[] handlers = dataHandlers.get(channel);
+        if (handlers == null) {
+            metrics.recordReceived(channel, data.length, -1);
+            fireEvent(event);
+            return;
+        }
+        long start = System.nanoTime();
+        for (GlobalDataHandler handler : handlers) {
+            try {
+                handler.onGlobalData(event);
+            } catch (Throwable t) {
+                plugin.getLogger().error("Exception in data handler for channel " + channel, t);
+            }
+        }
+        metrics.recordReceived(channel, data.length, System.nanoTime() - start);
     }
 
     @Subscribe(priority = Byte.MIN_VALUE + 2)
     public void onPlayerJoin(PostLoginEvent e) {
-        Player p = e.getPlayer();
-        schedule(new Runnable() {
-            @Override
-            public void run() {
-                GlobalPlayer existing = getPlayer(p.getUniqueId());
-                if (existing == null || !existing.isOnServer(getThisServer())) {
-                    onPlayerOnline(p.getUniqueId(), p.getUsername(), System.currentTimeMillis());
-                }
-            }
-        });
+        queuePresence(e.getPlayer().getUniqueId(), e.getPlayer());
     }
 
     @Subscribe(priority = Byte.MAX_VALUE - 1)
     public void onPlayerQuit(DisconnectEvent e) {
-        Player p = e.getPlayer();
-        schedule(new Runnable() {
-            @Override
-            public void run() {
-                GlobalPlayer existing = getPlayer(p.getUniqueId());
-                if (existing != null && existing.isOnServer(getThisServer())) {
-                    onPlayerOffline(p.getUniqueId());
-                }
+        queuePresence(e.getPlayer().getUniqueId(), null);
+    }
+
+    /**
+     * Queues a join (player is not null) or quit (player is null) until the coalescing window ends. Only the latest
+     * change of each player is kept, so a join and a quit within the window cancel out.
+     */
+    private void queuePresence(UUID uuid, Player player) {
+        if (presenceCoalesceMillis <= 0) {
+            schedule(() -> applyPresence(Collections.singletonMap(uuid, player), System.currentTimeMillis()));
+            return;
+        }
+        boolean scheduleFlush;
+        synchronized (pendingPresence) {
+            pendingPresence.remove(uuid); // keep the order of the latest change
+            pendingPresence.put(uuid, player);
+            scheduleFlush = !presenceFlushScheduled;
+            presenceFlushScheduled = true;
+        }
+        if (scheduleFlush) {
+            plugin.getServer().getScheduler().buildTask(plugin, this::flushPresence).delay(presenceCoalesceMillis, TimeUnit.MILLISECONDS).schedule();
+        }
+    }
+
+    /**
+     * Applies up to <code>client.presence-max-per-flush</code> queued presence changes in one client task. If more
+     * changes are queued, the next flush is scheduled after another coalescing window.
+     */
+    private void flushPresence() {
+        LinkedHashMap<UUID, Player> changes = new LinkedHashMap<>();
+        boolean more;
+        synchronized (pendingPresence) {
+            Iterator<Entry<UUID, Player>> it = pendingPresence.entrySet().iterator();
+            while (it.hasNext() && changes.size() < presenceMaxPerFlush) {
+                Entry<UUID, Player> change = it.next();
+                changes.put(change.getKey(), change.getValue());
+                it.remove();
             }
-        });
+            more = !pendingPresence.isEmpty();
+            presenceFlushScheduled = more;
+        }
+        if (!changes.isEmpty()) {
+            long time = System.currentTimeMillis();
+            schedule(() -> applyPresence(changes, time));
+        }
+        if (more) {
+            plugin.getServer().getScheduler().buildTask(plugin, this::flushPresence).delay(presenceCoalesceMillis, TimeUnit.MILLISECONDS).schedule();
+        }
+    }
+
+    private void applyPresence(Map<UUID, Player> changes, long time) {
+        GlobalServer thisServer = getThisServer();
+        for (Entry<UUID, Player> change : changes.entrySet()) {
+            UUID uuid = change.getKey();
+            Player p = change.getValue();
+            GlobalPlayer existing = getPlayer(uuid);
+            boolean registered = existing != null && thisServer != null && existing.isOnServer(thisServer);
+            if (p != null && !registered) {
+                onPlayerOnline(uuid, p.getUsername(), time);
+            } else if (p == null && registered) {
+                onPlayerOffline(uuid);
+            }
+        }
     }
 
     @Override
     protected void onPlayerJoined(GlobalServer server, GlobalPlayer player, boolean joinedTheNetwork) {
-        plugin.getServer().getEventManager().fire(new GlobalPlayerJoinedEvent(server, player, joinedTheNetwork));
+        for (GlobalPresenceListener listener : presenceListeners) {
+            try {
+                listener.onPlayerJoined(server, player, joinedTheNetwork);
+            } catch (Throwable t) {
+                plugin.getLogger().error("Exception in presence listener", t);
+            }
+        }
+        fireEvent(new GlobalPlayerJoinedEvent(server, player, joinedTheNetwork));
     }
 
     @Override
     protected void onPlayerDisconnected(GlobalServer server, GlobalPlayer player, boolean leftTheNetwork) {
-        plugin.getServer().getEventManager().fire(new GlobalPlayerDisconnectedEvent(server, player, leftTheNetwork));
+        for (GlobalPresenceListener listener : presenceListeners) {
+            try {
+                listener.onPlayerDisconnected(server, player, leftTheNetwork);
+            } catch (Throwable t) {
+                plugin.getLogger().error("Exception in presence listener", t);
+            }
+        }
+        fireEvent(new GlobalPlayerDisconnectedEvent(server, player, leftTheNetwork));
     }
 
     @Override
     protected void onServerConnected(GlobalServer server) {
-        plugin.getServer().getEventManager().fire(new GlobalServerConnectedEvent(server));
+        server.sendData(COMPRESSION_CHANNEL, new byte[0]);
+        if (spoolActive) {
+            replaySpool(); // before the event, so the spooled data arrives before anything sent by listeners
+        }
+        for (GlobalPresenceListener listener : presenceListeners) {
+            try {
+                listener.onServerConnected(server);
+            } catch (Throwable t) {
+                plugin.getLogger().error("Exception in presence listener", t);
+            }
+        }
+        fireEvent(new GlobalServerConnectedEvent(server));
     }
 
     @Override
     protected void onServerDisconnected(GlobalServer server) {
-        plugin.getServer().getEventManager().fire(new GlobalServerDisconnectedEvent(server));
+        compressionServers.remove(server.getName());
+        for (GlobalPresenceListener listener : presenceListeners) {
+            try {
+                listener.onServerDisconnected(server);
+            } catch (Throwable t) {
+                plugin.getLogger().error("Exception in presence listener", t);
+            }
+        }
+        fireEvent(new GlobalServerDisconnectedEvent(server));
     }
 
     @Override
     public void shutdown() {
         this.stoppingServer = true;
         super.shutdown();
-        synchronized (sync) {
-            running = false;
-            sync.notifyAll();
-        }
+        mainLoop.stop();
+        workers.shutdown();
     }
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package de.cubeside.connection;
+
+import de.cubeside.connection.event.GlobalDataEvent;
+
+/**
+ * Receives the data of a single channel directly from a worker thread, without going through the Velocity event bus.
+ * Data from one server is received in order, data from different servers may be received in parallel.
+ *
+ * @see GlobalClientVelocity#registerDataHandler(String, GlobalDataHandler)
+ */
+@FunctionalInterface
+public interface GlobalDataHandler {
+    public void onGlobalData(GlobalDataEvent e);
+}
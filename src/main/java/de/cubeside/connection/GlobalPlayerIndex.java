@@ -0,0 +1,100 @@
+package de.cubeside.connection;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes of the players in the network by name and by server. The indexes are updated on the client thread from the
+ * presence changes and can be read from any thread without locks.
+ *
+ * @see GlobalClientVelocity#getPlayerIndex()
+ */
+public class GlobalPlayerIndex implements GlobalPresenceListener {
+    private static class ServerPlayers {
+        private final Set<GlobalPlayer> players = ConcurrentHashMap.newKeySet();
+        private final Set<GlobalPlayer> playersView = Collections.unmodifiableSet(players);
+        private volatile int count;
+    }
+
+    private final ConcurrentHashMap<String, GlobalPlayer> playersByName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ServerPlayers> playersByServer = new ConcurrentHashMap<>();
+    private volatile int playerCount;
+
+    /**
+     * Returns the player with this name (ignoring case) if the player is online on any server, null otherwise.
+     */
+    public GlobalPlayer getPlayer(String name) {
+        return playersByName.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    public boolean isOnline(String name) {
+        return playersByName.containsKey(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns an unmodifiable live view of the players on the server with this name.
+     */
+    public Set<GlobalPlayer> getPlayers(String server) {
+        ServerPlayers serverPlayers = playersByServer.get(server);
+        return serverPlayers == null ? Collections.emptySet() : serverPlayers.playersView;
+    }
+
+    public int getPlayerCount(String server) {
+        ServerPlayers serverPlayers = playersByServer.get(server);
+        return serverPlayers == null ? 0 : serverPlayers.count;
+    }
+
+    /**
+     * Returns the number of players that are online on any server.
+     */
+    public int getPlayerCount() {
+        return playerCount;
+    }
+
+    @Override
+    public void onPlayerJoined(GlobalServer server, GlobalPlayer player, boolean joinedTheNetwork) {
+        if (playersByName.put(player.getName().toLowerCase(Locale.ROOT), player) == null) {
+            playerCount++;
+        }
+        ServerPlayers serverPlayers = playersByServer.computeIfAbsent(server.getName(), name -> new ServerPlayers());
+        if (serverPlayers.players.add(player)) {
+            serverPlayers.count++;
+        }
+    }
+
+    @Override
+    public void onPlayerDisconnected(GlobalServer server, GlobalPlayer player, boolean leftTheNetwork) {
+        ServerPlayers serverPlayers = playersByServer.get(server.getName());
+        if (serverPlayers != null && serverPlayers.players.remove(player)) {
+            serverPlayers.count--;
+        }
+        if (leftTheNetwork) {
+            removePlayer(player);
+        }
+    }
+
+    @Override
+    public void onServerConnected(GlobalServer server) {
+        playersByServer.computeIfAbsent(server.getName(), name -> new ServerPlayers());
+    }
+
+    @Override
+    public void onServerDisconnected(GlobalServer server) {
+        ServerPlayers serverPlayers = playersByServer.remove(server.getName());
+        if (serverPlayers != null) {
+            for (GlobalPlayer player : serverPlayers.players) {
+                if (!player.isOnAnyServer()) {
+                    removePlayer(player);
+                }
+            }
+        }
+    }
+
+    private void removePlayer(GlobalPlayer player) {
+        if (playersByName.remove(player.getName().toLowerCase(Locale.ROOT), player)) {
+            playerCount--;
+        }
+    }
+}
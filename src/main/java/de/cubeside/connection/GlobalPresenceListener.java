@@ -0,0 +1,21 @@
+package de.cubeside.connection;
+
+/**
+ * Receives presence changes of the global client directly. The methods are called synchronously on the client thread,
+ * before the matching events are fired on the Velocity event bus, so they must not block.
+ *
+ * @see GlobalClientVelocity#registerPresenceListener(GlobalPresenceListener)
+ */
+public interface GlobalPresenceListener {
+    public default void onPlayerJoined(GlobalServer server, GlobalPlayer player, boolean joinedTheNetwork) {
+    }
+
+    public default void onPlayerDisconnected(GlobalServer server, GlobalPlayer player, boolean leftTheNetwork) {
+    }
+
+    public default void onServerConnected(GlobalServer server) {
+    }
+
+    public default void onServerDisconnected(GlobalServer server) {
+    }
+}
@@ -0,0 +1,20 @@
+package de.cubeside.connection;
+
+/**
+ * Receives the changes of the properties it was subscribed to directly, without going through the Velocity event bus.
+ * Called on the thread that applied the change: a worker thread for changes from other servers, the calling thread for
+ * local changes and the client thread for expired properties. So it must be thread safe and must not block.
+ *
+ * @see PlayerPropertiesAPI#subscribe(String, GlobalPropertyListener)
+ * @see PlayerPropertiesAPI#subscribePrefix(String, GlobalPropertyListener)
+ */
+@FunctionalInterface
+public interface GlobalPropertyListener {
+    /**
+     * @param player
+     *            the player, or null if the player is not known to this server
+     * @param value
+     *            the new value, or null if the property was removed
+     */
+    public void onPropertyChanged(GlobalServer source, GlobalPlayer player, String property, String value);
+}
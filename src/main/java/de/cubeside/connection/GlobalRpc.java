@@ -0,0 +1,218 @@
+package de.cubeside.connection;
+
+import com.google.common.base.Preconditions;
+import de.cubeside.connection.event.GlobalDataEvent;
+import de.cubeside.connection.util.ByteArrayReader;
+import de.cubeside.connection.util.ByteArrayWriter;
+import de.cubeside.connection.util.HashedTimerWheel;
+import de.cubeside.connection.util.HashedTimerWheel.Timeout;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request/response calls between servers. Each service uses its own channel. Requests carry a correlation id, so any
+ * number of requests can be in flight on a channel at the same time. Replies complete the waiting future directly on a
+ * worker thread, without going through the Velocity event bus.
+ *
+ * @see GlobalClientVelocity#getRpc()
+ */
+public class GlobalRpc implements GlobalPresenceListener {
+    /**
+     * The error sent back by the called server, or the reason why a request failed without a reply.
+     */
+    public static class GlobalRpcException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public GlobalRpcException(String message) {
+            super(message);
+        }
+    }
+
+    private static class PendingRequest {
+        private final long id;
+        private final String server;
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        private volatile Timeout<PendingRequest> timeout;
+
+        private PendingRequest(long id, String server) {
+            this.id = id;
+            this.server = server;
+        }
+    }
+
+    private final static int MESSAGE_REQUEST = 0;
+    private final static int MESSAGE_REPLY = 1;
+    private final static int MESSAGE_ERROR = 2;
+
+    private final static long TIMEOUT_TICK_MILLIS = 50;
+    private final static int TIMEOUT_WHEEL_SIZE = 1024;
+
+    private static final ThreadLocal<ByteArrayWriter> WRITER = ThreadLocal.withInitial(ByteArrayWriter::new);
+    private static final ThreadLocal<ByteArrayReader> READER = ThreadLocal.withInitial(ByteArrayReader::new);
+
+    private final GlobalClientPlugin plugin;
+    private final GlobalClientVelocity client;
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentHashMap<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final HashedTimerWheel<PendingRequest> timeouts = new HashedTimerWheel<>(TIMEOUT_WHEEL_SIZE, TIMEOUT_TICK_MILLIS, System.currentTimeMillis());
+    private final ConcurrentHashMap<String, GlobalRpcHandler> handlers = new ConcurrentHashMap<>();
+    private final Set<String> channels = ConcurrentHashMap.newKeySet();
+
+    public GlobalRpc(GlobalClientPlugin plugin, GlobalClientVelocity client) {
+        this.plugin = plugin;
+        this.client = client;
+        client.registerPresenceListener(this);
+        // also while no request is pending, that is cheap and keeps the wheel from falling behind the clock
+        plugin.getServer().getScheduler().buildTask(plugin, () -> timeouts.advance(System.currentTimeMillis(), this::timeout)).repeat(TIMEOUT_TICK_MILLIS, TimeUnit.MILLISECONDS).schedule();
+    }
+
+    /**
+     * Registers the handler that answers the requests on a channel. Only one handler can be registered per channel.
+     */
+    public void registerHandler(String channel, GlobalRpcHandler handler) {
+        Preconditions.checkNotNull(channel, "channel");
+        Preconditions.checkNotNull(handler, "handler");
+        Preconditions.checkState(handlers.putIfAbsent(channel, handler) == null, "channel " + channel + " already has a handler");
+        listen(channel);
+    }
+
+    public void unregisterHandler(String channel, GlobalRpcHandler handler) {
+        Preconditions.checkNotNull(channel, "channel");
+        Preconditions.checkNotNull(handler, "handler");
+        handlers.remove(channel, handler);
+    }
+
+    /**
+     * Sends a request to a server.
+     *
+     * @return a future that is completed with the reply, or completed exceptionally with a {@link GlobalRpcException} if
+     *         the called server sent an error or disconnected, or with a {@link TimeoutException} if there was no reply in
+     *         time. The future is completed on a worker thread or on a scheduler thread, so dependent actions must not
+     *         block.
+     */
+    public CompletableFuture<byte[]> request(GlobalServer target, String channel, byte[] data, long timeout, TimeUnit unit) {
+        Preconditions.checkNotNull(target, "target");
+        Preconditions.checkNotNull(channel, "channel");
+        Preconditions.checkNotNull(data, "data");
+        Preconditions.checkNotNull(unit, "unit");
+        Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+        listen(channel);
+        long id = nextId.incrementAndGet();
+        PendingRequest request = new PendingRequest(id, target.getName());
+        pendingRequests.put(id, request);
+        request.timeout = timeouts.schedule(request, System.currentTimeMillis() + unit.toMillis(timeout));
+        send(target, channel, encode(MESSAGE_REQUEST, id, data));
+        return request.future;
+    }
+
+    /**
+     * @return the number of requests that are waiting for a reply
+     */
+    public int getPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    private void listen(String channel) {
+        if (channels.add(channel)) {
+            client.registerDataHandler(channel, this::onGlobalData);
+        }
+    }
+
+    private void onGlobalData(GlobalDataEvent e) {
+        ByteArrayReader in = e.readData(READER.get());
+        try {
+            int type = in.readUnsignedByte();
+            long id = in.readVarLong();
+            if (type == MESSAGE_REQUEST) {
+                onRequest(e.getSource(), e.getChannel(), id, in.readBytes(in.remaining()));
+            } else if (type == MESSAGE_REPLY || type == MESSAGE_ERROR) {
+                PendingRequest request = pendingRequests.remove(id);
+                if (request == null) {
+                    return; // timed out
+                }
+                timeouts.cancel(request.timeout);
+                if (type == MESSAGE_REPLY) {
+                    request.future.complete(in.readBytes(in.remaining()));
+                } else {
+                    request.future.completeExceptionally(new GlobalRpcException(in.readString()));
+                }
+            }
+        } catch (IOException ex) {
+            plugin.getLogger().error("Could not parse RPC message on channel " + e.getChannel(), ex);
+        }
+    }
+
+    private void onRequest(GlobalServer source, String channel, long id, byte[] data) {
+        GlobalRpcHandler handler = handlers.get(channel);
+        if (handler == null) {
+            sendError(source, channel, id, "No handler for " + channel);
+            return;
+        }
+        CompletableFuture<byte[]> reply;
+        try {
+            reply = handler.onRequest(source, data);
+        } catch (Throwable t) {
+            plugin.getLogger().error("Exception in RPC handler for channel " + channel, t);
+            sendError(source, channel, id, String.valueOf(t));
+            return;
+        }
+        if (reply == null) {
+            plugin.getLogger().error("RPC handler for channel " + channel + " returned null");
+            sendError(source, channel, id, "handler returned null");
+            return;
+        }
+        reply.whenComplete((result, error) -> {
+            if (error != null) {
+                sendError(source, channel, id, String.valueOf(error));
+            } else {
+                send(source, channel, encode(MESSAGE_REPLY, id, result == null ? new byte[0] : result));
+            }
+        });
+    }
+
+    private void sendError(GlobalServer target, String channel, long id, String message) {
+        ByteArrayWriter out = WRITER.get().reset();
+        out.writeByte(MESSAGE_ERROR);
+        out.writeVarLong(id);
+        out.writeString(message);
+        send(target, channel, out.toByteArray());
+    }
+
+    private void send(GlobalServer target, String channel, byte[] message) {
+        client.getMetrics().recordSent(channel, message.length);
+        target.sendData(channel, message);
+    }
+
+    private static byte[] encode(int type, long id, byte[] data) {
+        ByteArrayWriter out = WRITER.get().reset();
+        out.writeByte(type);
+        out.writeVarLong(id);
+        out.writeBytes(data);
+        return out.toByteArray();
+    }
+
+    private void timeout(PendingRequest request) {
+        if (pendingRequests.remove(request.id, request)) {
+            request.future.completeExceptionally(new TimeoutException("No reply from " + request.server));
+        }
+    }
+
+    @Override
+    public void onServerDisconnected(GlobalServer server) {
+        Iterator<PendingRequest> it = pendingRequests.values().iterator();
+        while (it.hasNext()) {
+            PendingRequest request = it.next();
+            if (request.server.equals(server.getName())) {
+                it.remove();
+                timeouts.cancel(request.timeout);
+                request.future.completeExceptionally(new GlobalRpcException(server.getName() + " disconnected"));
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package de.cubeside.connection;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Answers the requests sent to this server on one channel. Called on a worker thread, so it must not block. Long
+ * running work should be done elsewhere and complete the returned future later.
+ *
+ * @see GlobalRpc#registerHandler(String, GlobalRpcHandler)
+ */
+@FunctionalInterface
+public interface GlobalRpcHandler {
+    /**
+     * @return the reply, or a future completed exceptionally to send an error to the caller. Must not be null
+     */
+    public CompletableFuture<byte[]> onRequest(GlobalServer source, byte[] data);
+}
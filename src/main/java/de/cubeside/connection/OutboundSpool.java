@@ -0,0 +1,191 @@
+package de.cubeside.connection;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Holds data that is sent while the client is not connected to the hub, so it can be sent in order once the connection
+ * is back. The spool is limited to a number of bytes. What happens when it is full or a message is superseded depends on
+ * the {@link Policy} of the channel. All methods must be called while holding the lock of the spool.
+ */
+public class OutboundSpool {
+    public enum Policy {
+        /**
+         * Only the latest message for each key is kept. If the spool is full, the oldest messages are dropped.
+         */
+        KEEP_LATEST,
+        /**
+         * If the spool is full, the oldest messages are dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * If the spool is full, the new message is rejected.
+         */
+        REJECT
+    }
+
+    public static class SpooledMessage {
+        private final String channel;
+        private final byte[] data;
+        private final boolean sendToRestricted;
+
+        private SpooledMessage(String channel, byte[] data, boolean sendToRestricted) {
+            this.channel = channel;
+            this.data = data;
+            this.sendToRestricted = sendToRestricted;
+        }
+
+        public String getChannel() {
+            return channel;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public boolean isSendToRestricted() {
+            return sendToRestricted;
+        }
+    }
+
+    private static class ChannelPolicy {
+        private final Policy policy;
+        private final Function<byte[], Object> keyExtractor;
+
+        private ChannelPolicy(Policy policy, Function<byte[], Object> keyExtractor) {
+            this.policy = policy;
+            this.keyExtractor = keyExtractor;
+        }
+    }
+
+    private static class MessageKey {
+        private final String channel;
+        private final Object key;
+
+        private MessageKey(String channel, Object key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return channel.hashCode() * 31 + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MessageKey)) {
+                return false;
+            }
+            MessageKey other = (MessageKey) obj;
+            return channel.equals(other.channel) && key.equals(other.key);
+        }
+    }
+
+    private static final ChannelPolicy DEFAULT_POLICY = new ChannelPolicy(Policy.DROP_OLDEST, null);
+
+    private final long maxBytes;
+    private final ClientMetrics metrics;
+    private final ConcurrentHashMap<String, ChannelPolicy> policies = new ConcurrentHashMap<>();
+    /**
+     * The spooled messages in the order they were sent. Messages without a key use themselves as key.
+     */
+    private final LinkedHashMap<Object, SpooledMessage> messages = new LinkedHashMap<>();
+    private long bytes;
+
+    public OutboundSpool(long maxBytes, ClientMetrics metrics) {
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the policy for a channel. Channels without a policy use {@link Policy#DROP_OLDEST}.
+     *
+     * @param keyExtractor
+     *            returns the key of a message for {@link Policy#KEEP_LATEST}, or null if the message has no key and
+     *            must always be kept. Must be null for other policies.
+     */
+    public void setPolicy(String channel, Policy policy, Function<byte[], Object> keyExtractor) {
+        Preconditions.checkNotNull(channel, "channel");
+        Preconditions.checkNotNull(policy, "policy");
+        Preconditions.checkArgument((policy == Policy.KEEP_LATEST) == (keyExtractor != null), "keyExtractor must be set for KEEP_LATEST only");
+        policies.put(channel, new ChannelPolicy(policy, keyExtractor));
+    }
+
+    /**
+     * Returns the key of the message if the channel uses {@link Policy#KEEP_LATEST}.
+     */
+    public Object getKey(String channel, byte[] data) {
+        ChannelPolicy policy = policies.getOrDefault(channel, DEFAULT_POLICY);
+        return policy.keyExtractor == null ? null : policy.keyExtractor.apply(data);
+    }
+
+    /**
+     * Adds a message to the spool.
+     *
+     * @param key
+     *            the key returned by {@link #getKey(String, byte[])}
+     * @throws IllegalStateException
+     *             if the channel uses {@link Policy#REJECT} and the message does not fit into the spool
+     */
+    public void add(String channel, Object key, byte[] data, boolean sendToRestricted) {
+        ChannelPolicy policy = policies.getOrDefault(channel, DEFAULT_POLICY);
+        SpooledMessage message = new SpooledMessage(channel, data, sendToRestricted);
+        Object messageKey = key == null ? message : new MessageKey(channel, key);
+        SpooledMessage replaced = messages.remove(messageKey);
+        if (replaced != null) {
+            bytes -= replaced.data.length;
+            metrics.getChannelStats(channel).spoolReplaced.increment();
+        }
+        if (bytes + data.length > maxBytes) {
+            if (policy.policy == Policy.REJECT || data.length > maxBytes) {
+                metrics.getChannelStats(channel).spoolRejected.increment();
+                if (policy.policy == Policy.REJECT) {
+                    throw new IllegalStateException("The outbound spool is full");
+                }
+                return;
+            }
+            Iterator<SpooledMessage> it = messages.values().iterator();
+            while (bytes + data.length > maxBytes) {
+                SpooledMessage dropped = it.next();
+                it.remove();
+                bytes -= dropped.data.length;
+                metrics.getChannelStats(dropped.channel).spoolDropped.increment();
+            }
+        }
+        messages.put(messageKey, message);
+        bytes += data.length;
+        metrics.getChannelStats(channel).spooled.increment();
+    }
+
+    /**
+     * Removes and returns all spooled messages in the order they were sent.
+     */
+    public List<SpooledMessage> takeAll() {
+        List<SpooledMessage> result = new ArrayList<>(messages.values());
+        messages.clear();
+        bytes = 0;
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
@@ -1,13 +1,137 @@
 package de.cubeside.connection;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Properties of the players in the network. Property names and values can be at most
+ * {@link PlayerPropertiesCodec#MAX_STRING_BYTES} bytes long in modified UTF-8, the methods that set properties throw an
+ * {@link IllegalArgumentException} for longer strings.
+ */
 public interface PlayerPropertiesAPI {
     public boolean hasProperty(GlobalPlayer player, String property);
 
     public String getPropertyValue(GlobalPlayer player, String property);
 
+    /**
+     * Returns an immutable snapshot of all properties of the player. Later changes to the properties are not reflected
+     * in the returned map.
+     */
     public Map<String, String> getAllProperties(GlobalPlayer player);
 
+    /**
+     * Starts maintaining an index of the players by the value of this property, so
+     * {@link #getPlayersWithProperty(String, String)} can be used for it.
+     */
+    public void indexProperty(String property);
+
+    /**
+     * Returns all online players that have this value for a property that was registered with
+     * {@link #indexProperty(String)}.
+     *
+     * @throws IllegalArgumentException
+     *             if the property is not indexed
+     */
+    public List<GlobalPlayer> getPlayersWithProperty(String property, String value);
+
+    /**
+     * Calls the listener directly for every change of this property, including changes made on this server. Unlike
+     * {@link de.cubeside.connection.event.GlobalPlayerPropertyChangedEvent}, changes of other properties are not passed
+     * to the listener at all, and listeners are also called if <code>properties.events</code> is disabled in the config.
+     */
+    public void subscribe(String property, GlobalPropertyListener listener);
+
+    /**
+     * Calls the listener directly for every change of a property whose name starts with the prefix.
+     */
+    public void subscribePrefix(String prefix, GlobalPropertyListener listener);
+
+    /**
+     * Removes all subscriptions of the listener.
+     */
+    public void unsubscribe(GlobalPropertyListener listener);
+
     public void setPropertyValue(GlobalPlayer player, String property, String value);
+
+    /**
+     * Sets a typed property. The string form of the value is returned by
+     * {@link #getPropertyValue(GlobalPlayer, String)}. Typed values are sent in a compact binary form, servers running an
+     * older version ignore them until the next full resync. With <code>properties.persistence</code> enabled, only the
+     * string form is saved, so after a restart the property is a string property until it is set again. The typed
+     * getters still parse it.
+     */
+    public void setPropertyValue(GlobalPlayer player, String property, PropertyValue value);
+
+    /**
+     * @return the typed value of the property, or null if the property is not set or was set as string
+     */
+    public PropertyValue getTypedPropertyValue(GlobalPlayer player, String property);
+
+    /**
+     * Returns the value of an int property. Properties set as string are parsed.
+     *
+     * @return the value, or defaultValue if the property is not set or not an int
+     */
+    public int getIntProperty(GlobalPlayer player, String property, int defaultValue);
+
+    /**
+     * Returns the value of a long or int property. Properties set as string are parsed.
+     *
+     * @return the value, or defaultValue if the property is not set or not a long
+     */
+    public long getLongProperty(GlobalPlayer player, String property, long defaultValue);
+
+    /**
+     * Returns the value of a boolean property. Properties set as string must be "true" or "false".
+     *
+     * @return the value, or defaultValue if the property is not set or not a boolean
+     */
+    public boolean getBooleanProperty(GlobalPlayer player, String property, boolean defaultValue);
+
+    /**
+     * Returns the value of a numeric property. Properties set as string are parsed.
+     *
+     * @return the value, or defaultValue if the property is not set or not a number
+     */
+    public double getDoubleProperty(GlobalPlayer player, String property, double defaultValue);
+
+    /**
+     * Returns a copy of the value of a binary property. Properties set as string are decoded as Base64.
+     *
+     * @return the value, or null if the property is not set or not binary
+     */
+    public byte[] getBytesProperty(GlobalPlayer player, String property);
+
+    /**
+     * Sets a property that is removed again after the given time. The lifetime is sent to the other servers and every
+     * server removes the property by itself, without a delete message. Setting the property again replaces the lifetime.
+     * Servers running an older version keep the value until the player leaves the network.
+     */
+    public void setPropertyValue(GlobalPlayer player, String property, String value, long ttl, TimeUnit unit);
+
+    /**
+     * Sets several properties of a player at once. A value of null removes the property. The changes are sent to the
+     * other servers together with other changes made within a short time.
+     */
+    public void setProperties(GlobalPlayer player, Map<String, String> properties);
+
+    /**
+     * Like {@link #setPropertyValue(GlobalPlayer, String, String)}, but the change is encoded and sent to the other
+     * servers in another thread. The new value is visible on this server as soon as this method returns.
+     *
+     * @return a future that is completed when the change was passed to the connection to the global server, or completed
+     *         exceptionally if it could not be sent
+     */
+    public CompletableFuture<Void> setPropertyValueAsync(GlobalPlayer player, String property, String value);
+
+    /**
+     * Like {@link #setProperties(GlobalPlayer, Map)}, but the changes are encoded and sent to the other servers in
+     * another thread. The new values are visible on this server as soon as this method returns.
+     *
+     * @return a future that is completed when the changes were passed to the connection to the global server, or
+     *         completed exceptionally if they could not be sent
+     */
+    public CompletableFuture<Void> setPropertiesAsync(GlobalPlayer player, Map<String, String> properties);
 }
@@ -0,0 +1,402 @@
+package de.cubeside.connection;
+
+import de.cubeside.connection.util.ByteArrayReader;
+import de.cubeside.connection.util.ByteArrayWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Encodes and decodes the messages of the player properties channel.
+ */
+public final class PlayerPropertiesCodec {
+    final static int MESSAGE_SET_PROPERTY = 1;
+    final static int MESSAGE_DELETE_PROPERTY = 2;
+    final static int MESSAGE_MULTISET_PROPERTIES = 3;
+    final static int MESSAGE_SYNC_DIGESTS = 4;
+    final static int MESSAGE_SYNC_REQUEST = 5;
+    final static int MESSAGE_SYNC_DELTA = 6;
+    final static int MESSAGE_EXPIRE = 8;
+    final static int MESSAGE_SET_TYPED = 9;
+    final static int MESSAGE_HELLO = 10;
+    final static int MESSAGE_DICTIONARY = 11;
+    final static int MESSAGE_UPDATE_V2 = 12;
+    final static int MESSAGE_RESYNC = 13;
+
+    /**
+     * The newest codec version this server understands. Version 1 are the original messages, version 2 adds
+     * {@link #MESSAGE_UPDATE_V2} with varints, UTF-8 strings and a key dictionary.
+     */
+    final static int VERSION = 2;
+
+    /**
+     * The longest key or value, in bytes of modified UTF-8. The v1 messages, which are still used in networks with older
+     * servers, while not connected and in full resyncs, and properties.dat write strings with
+     * {@link DataOutputStream#writeUTF(String)}, so longer strings are rejected when they are set, even though v2 updates
+     * could carry them.
+     */
+    public final static int MAX_STRING_BYTES = 65535;
+
+    private final static int V2_DELETE = 0;
+    private final static int V2_STRING = 1;
+    private final static int V2_TYPED = 2;
+
+    private static final ThreadLocal<ByteArrayWriter> WRITER = ThreadLocal.withInitial(ByteArrayWriter::new);
+
+    @FunctionalInterface
+    public interface UpdateAction {
+        /**
+         * @param changes
+         *            the changed properties with their string form, null for removed properties
+         * @param typedChanges
+         *            the typed values of the changed properties that were set typed
+         */
+        void accept(UUID uuid, LinkedHashMap<String, String> changes, LinkedHashMap<String, PropertyValue> typedChanges);
+    }
+
+    private PlayerPropertiesCodec() {
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the string is longer than {@link #MAX_STRING_BYTES} in modified UTF-8
+     */
+    static void checkLength(String s, String name) {
+        int length = s.length();
+        if (length <= MAX_STRING_BYTES / 3) {
+            return;
+        }
+        int utfLength = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                utfLength += 2;
+            } else if (c >= 0x80 || c == 0) {
+                utfLength++;
+            }
+        }
+        if (utfLength > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException(name + " is longer than " + MAX_STRING_BYTES + " bytes");
+        }
+    }
+
+    public static byte[] encodeSet(UUID uuid, String property, String value) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(); DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeByte(MESSAGE_SET_PROPERTY);
+            writeUUID(dos, uuid);
+            dos.writeUTF(property);
+            dos.writeUTF(value);
+            dos.close();
+            return baos.toByteArray();
+        } catch (IOException ex) {
+            throw new Error("impossible");
+        }
+    }
+
+    public static byte[] encodeDelete(UUID uuid, String property) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(); DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeByte(MESSAGE_DELETE_PROPERTY);
+            writeUUID(dos, uuid);
+            dos.writeUTF(property);
+            dos.close();
+            return baos.toByteArray();
+        } catch (IOException ex) {
+            throw new Error("impossible");
+        }
+    }
+
+    /**
+     * Encodes the announcement of the highest protocol version this server understands.
+     */
+    public static byte[] encodeHello() {
+        ByteArrayWriter out = WRITER.get().reset();
+        out.writeByte(MESSAGE_HELLO);
+        out.writeVarInt(VERSION);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes the epoch and all keys of the dictionary of this server. Sent right after the hello, when a server asks for
+     * a resync and when the dictionary starts a new epoch.
+     */
+    public static byte[] encodeDictionary(PropertyKeyDictionary dictionary) {
+        ByteArrayWriter out = WRITER.get().reset();
+        out.writeByte(MESSAGE_DICTIONARY);
+        out.writeInt(dictionary.getEpoch());
+        out.writeVarInt(dictionary.size());
+        for (String key : dictionary.getKeys()) {
+            out.writeString(key);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a dictionary message into a new dictionary, which replaces the previous dictionary of the sender.
+     */
+    public static PropertyKeyDictionary decodeDictionary(ByteArrayReader in, int maxSize) throws IOException {
+        PropertyKeyDictionary dictionary = new PropertyKeyDictionary(maxSize, in.readInt());
+        int count = in.readVarInt();
+        for (int id = 0; id < count; id++) {
+            if (!dictionary.put(id, in.readString())) {
+                throw new IOException("Dictionary too large");
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * Encodes the request to send the dictionary and the properties again, sent when a v2 update could not be decoded.
+     */
+    public static byte[] encodeResync() {
+        return new byte[] { MESSAGE_RESYNC };
+    }
+
+    /**
+     * Encodes the changes of several players in one v2 message. Keys without an id get one if the dictionary is not full,
+     * the id is announced together with the key the first time it is used. Must be called while holding the lock of the
+     * dictionary, and the message must be sent before the lock is released.
+     *
+     * @param writes
+     *            the changed properties with their string form, null for removed properties
+     * @param typedWrites
+     *            the typed values of some of the changed properties
+     * @return the message, or null if there are no changes
+     */
+    public static byte[] encodeUpdate(Map<UUID, ? extends Map<String, String>> writes, Map<UUID, ? extends Map<String, PropertyValue>> typedWrites, PropertyKeyDictionary dictionary) {
+        ByteArrayWriter out = WRITER.get().reset();
+        out.writeByte(MESSAGE_UPDATE_V2);
+        out.writeInt(dictionary.getEpoch());
+        int players = 0;
+        for (Entry<UUID, ? extends Map<String, String>> write : writes.entrySet()) {
+            if (write.getValue().isEmpty()) {
+                continue;
+            }
+            Map<String, PropertyValue> typed = typedWrites.get(write.getKey());
+            out.writeBoolean(true);
+            out.writeUUID(write.getKey());
+            out.writeVarInt(write.getValue().size());
+            for (Entry<String, String> change : write.getValue().entrySet()) {
+                writeKey(out, change.getKey(), dictionary);
+                PropertyValue typedValue = typed == null ? null : typed.get(change.getKey());
+                if (typedValue != null) {
+                    out.writeByte(V2_TYPED);
+                    typedValue.writeCompact(out);
+                } else if (change.getValue() == null) {
+                    out.writeByte(V2_DELETE);
+                } else {
+                    out.writeByte(V2_STRING);
+                    out.writeString(change.getValue());
+                }
+            }
+            players++;
+        }
+        if (players == 0) {
+            return null;
+        }
+        out.writeBoolean(false);
+        return out.toByteArray();
+    }
+
+    /**
+     * A key is written as a varint: 0 for a key without id followed by the key, 2 * id + 1 for a new id followed by the
+     * key, and 2 * id + 2 for a known id.
+     */
+    private static void writeKey(ByteArrayWriter out, String key, PropertyKeyDictionary dictionary) {
+        int id = dictionary.getId(key);
+        if (id >= 0) {
+            out.writeVarInt(2 * id + 2);
+            return;
+        }
+        id = dictionary.add(key);
+        out.writeVarInt(id < 0 ? 0 : 2 * id + 1);
+        out.writeString(key);
+    }
+
+    /**
+     * Decodes a v2 update message. The changes are only passed to the action once all keys of the message are known.
+     *
+     * @param dictionary
+     *            the dictionary of the sender, or null if it is not known
+     * @return false if the message uses another epoch than the dictionary or an id that is not in the dictionary, no
+     *         changes are passed to the action then
+     */
+    public static boolean decodeUpdate(ByteArrayReader in, PropertyKeyDictionary dictionary, UpdateAction action) throws IOException {
+        int epoch = in.readInt();
+        if (dictionary == null || dictionary.getEpoch() != epoch) {
+            return false;
+        }
+        ArrayList<UUID> players = new ArrayList<>();
+        ArrayList<LinkedHashMap<String, String>> playerChanges = new ArrayList<>();
+        ArrayList<LinkedHashMap<String, PropertyValue>> playerTypedChanges = new ArrayList<>();
+        while (in.readBoolean()) {
+            UUID uuid = in.readUUID();
+            int count = in.readVarInt();
+            LinkedHashMap<String, String> changes = new LinkedHashMap<>();
+            LinkedHashMap<String, PropertyValue> typedChanges = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                int keyRef = in.readVarInt();
+                String key;
+                if (keyRef == 0) {
+                    key = in.readString();
+                } else if ((keyRef & 1) != 0) {
+                    key = in.readString();
+                    if (!dictionary.put((keyRef - 1) >>> 1, key)) {
+                        throw new IOException("Invalid key id " + ((keyRef - 1) >>> 1));
+                    }
+                } else {
+                    key = dictionary.get((keyRef - 2) >>> 1);
+                    if (key == null) {
+                        return false;
+                    }
+                }
+                int op = in.readUnsignedByte();
+                String value;
+                PropertyValue typedValue = null;
+                if (op == V2_DELETE) {
+                    value = null;
+                } else if (op == V2_STRING) {
+                    value = in.readString();
+                } else if (op == V2_TYPED) {
+                    typedValue = PropertyValue.readCompact(in);
+                    value = typedValue.toString();
+                } else {
+                    throw new IOException("Unknown operation " + op);
+                }
+                changes.put(key, value);
+                if (typedValue != null) {
+                    typedChanges.put(key, typedValue);
+                }
+            }
+            players.add(uuid);
+            playerChanges.add(changes);
+            playerTypedChanges.add(typedChanges);
+        }
+        for (int i = 0; i < players.size(); i++) {
+            action.accept(players.get(i), playerChanges.get(i), playerTypedChanges.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * Encodes typed values of a player. Servers running an older version ignore this message.
+     */
+    public static byte[] encodeSetTyped(UUID uuid, Map<String, PropertyValue> values) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(); DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeByte(MESSAGE_SET_TYPED);
+            writeUUID(dos, uuid);
+            dos.writeInt(values.size());
+            for (Entry<String, PropertyValue> e : values.entrySet()) {
+                dos.writeUTF(e.getKey());
+                e.getValue().write(dos);
+            }
+            dos.close();
+            return baos.toByteArray();
+        } catch (IOException ex) {
+            throw new Error("impossible");
+        }
+    }
+
+    /**
+     * Encodes the remaining lifetimes of properties of a player. Sent after the values, servers running an older version
+     * ignore it and keep the values until the player leaves.
+     */
+    public static byte[] encodeExpire(UUID uuid, Map<String, Long> ttlMillis) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(); DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeByte(MESSAGE_EXPIRE);
+            writeUUID(dos, uuid);
+            dos.writeInt(ttlMillis.size());
+            for (Entry<String, Long> e : ttlMillis.entrySet()) {
+                dos.writeUTF(e.getKey());
+                dos.writeLong(e.getValue());
+            }
+            dos.close();
+            return baos.toByteArray();
+        } catch (IOException ex) {
+            throw new Error("impossible");
+        }
+    }
+
+    /**
+     * Encodes all values that are not null as a single multiset message.
+     *
+     * @return the message, or null if there are no values that are not null
+     */
+    public static byte[] encodeMultiSet(Map<UUID, ? extends Map<String, String>> values) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        boolean hasValues = false;
+        try {
+            dos.writeByte(MESSAGE_MULTISET_PROPERTIES);
+            for (Entry<UUID, ? extends Map<String, String>> player : values.entrySet()) {
+                int count = 0;
+                for (String value : player.getValue().values()) {
+                    if (value != null) {
+                        count++;
+                    }
+                }
+                if (count > 0) {
+                    hasValues = true;
+                    dos.writeBoolean(true);
+                    writeUUID(dos, player.getKey());
+                    dos.writeInt(count);
+                    for (Entry<String, String> entry : player.getValue().entrySet()) {
+                        if (entry.getValue() != null) {
+                            dos.writeUTF(entry.getKey());
+                            dos.writeUTF(entry.getValue());
+                        }
+                    }
+                }
+            }
+            dos.writeBoolean(false);
+            dos.close();
+        } catch (IOException ex) {
+            throw new Error("impossible");
+        }
+        return hasValues ? baos.toByteArray() : null;
+    }
+
+    /**
+     * Decodes the players of a multiset message. The reader must be positioned after the message type.
+     */
+    public static void decodeMultiSet(ByteArrayReader in, BiConsumer<UUID, LinkedHashMap<String, String>> action) throws IOException {
+        while (in.readBoolean()) {
+            UUID uuid = in.readUUID();
+            int propertiesCount = in.readInt();
+            LinkedHashMap<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < propertiesCount; i++) {
+                String property = in.readUTF();
+                String value = in.readUTF();
+                values.put(property, value);
+            }
+            action.accept(uuid, values);
+        }
+    }
+
+    /**
+     * Returns the player and property changed by a set or delete message, so only the latest of these messages is kept
+     * in the outbound spool. Returns null for all other messages.
+     */
+    public static Object getSpoolKey(byte[] data) {
+        ByteArrayReader in = new ByteArrayReader(data);
+        try {
+            int type = in.readUnsignedByte();
+            if (type != MESSAGE_SET_PROPERTY && type != MESSAGE_DELETE_PROPERTY) {
+                return null;
+            }
+            return Map.entry(in.readUUID(), in.readUTF());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static void writeUUID(DataOutputStream dos, UUID uuid) throws IOException {
+        dos.writeLong(uuid.getMostSignificantBits());
+        dos.writeLong(uuid.getLeastSignificantBits());
+    }
+}
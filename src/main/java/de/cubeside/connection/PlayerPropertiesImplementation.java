@@ -5,230 +5,997 @@ import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.proxy.Player;
 import de.cubeside.connection.event.GlobalDataEvent;
 import de.cubeside.connection.event.GlobalPlayerDisconnectedEvent;
+import de.cubeside.connection.event.GlobalPlayerPropertiesChangedEvent;
 import de.cubeside.connection.event.GlobalPlayerPropertyChangedEvent;
 import de.cubeside.connection.event.GlobalServerConnectedEvent;
-import de.cubeside.connection.util.AutoCloseableLockWrapper;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
+import de.cubeside.connection.event.GlobalServerDisconnectedEvent;
+import de.cubeside.connection.util.ByteArrayReader;
+import de.cubeside.connection.util.ChunkedMessageWriter;
+import de.cubeside.connection.util.HashedTimerWheel;
+import de.cubeside.connection.util.HashedTimerWheel.Timeout;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import org.spongepowered.configurate.CommentedConfigurationNode;
 
 public class PlayerPropertiesImplementation implements PlayerPropertiesAPI {
+    private static class Expiry {
+        private final UUID uuid;
+        private final String property;
+        private final String value;
 
-    private final static int MESSAGE_SET_PROPERTY = 1;
-    private final static int MESSAGE_DELETE_PROPERTY = 2;
-    private final static int MESSAGE_MULTISET_PROPERTIES = 3;
+        private Expiry(UUID uuid, String property, String value) {
+            this.uuid = uuid;
+            this.property = property;
+            this.value = value;
+        }
+    }
+
+    private final static int MAX_CHUNK_SIZE = 32 * 1024;
+    private final static int SYNC_FALLBACK_SECONDS = 5;
+    private final static int PRUNE_DELAY_SECONDS = 60;
+    private final static long EXPIRY_TICK_MILLIS = 100;
+    private final static int EXPIRY_WHEEL_SIZE = 512;
+    private final static int MAX_DICTIONARY_SIZE = 4096;
+    private final static int SHUTDOWN_FLUSH_TIMEOUT_SECONDS = 5;
+
+    private static final ThreadLocal<ByteArrayReader> READER = ThreadLocal.withInitial(ByteArrayReader::new);
 
     private final GlobalClientPlugin plugin;
 
     private final static String CHANNEL = "GlobalClient.playerProperties";
 
-    private final HashMap<UUID, HashMap<String, String>> playerProperties;
+    private final PlayerPropertyStore playerProperties;
+    private final PropertySubscriptions subscriptions;
+    private final PlayerPropertyStorage storage;
+
+    private final boolean events;
+    private final boolean perKeyEvents;
+    private final PropertyWriteQueue writeQueue;
 
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private final AutoCloseableLockWrapper readLock = new AutoCloseableLockWrapper(lock.readLock());
-    private final AutoCloseableLockWrapper writeLock = new AutoCloseableLockWrapper(lock.writeLock());
+    private final HashedTimerWheel<Expiry> expiryWheel = new HashedTimerWheel<>(EXPIRY_WHEEL_SIZE, EXPIRY_TICK_MILLIS, System.currentTimeMillis());
+    private final ConcurrentHashMap<UUID, ConcurrentHashMap<String, Timeout<Expiry>>> expiries = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Object> pendingSyncs = new ConcurrentHashMap<>();
+    // the announced versions of the other servers and the key dictionaries of the v2 updates
+    private final PropertyUpdateExchange updateExchange;
 
     public PlayerPropertiesImplementation(GlobalClientPlugin plugin) {
         this.plugin = plugin;
-        this.playerProperties = new HashMap<>();
+        this.playerProperties = new PlayerPropertyStore();
+        this.subscriptions = new PropertySubscriptions(t -> plugin.getLogger().error("Exception in property listener", t));
+        this.updateExchange = new PropertyUpdateExchange(new HubTransport(), MAX_DICTIONARY_SIZE, plugin.getLogger()::warn);
+        long coalesceMillis = plugin.getConfiguration().node("properties", "coalesce-millis").getLong(5);
+        this.writeQueue = new PropertyWriteQueue(coalesceMillis, task -> plugin.getGlobalClient().runInClientThread(task), task -> plugin.getServer().getScheduler().buildTask(plugin, task).delay(coalesceMillis, TimeUnit.MILLISECONDS).schedule(), this::sendWrites);
+        this.events = plugin.getConfiguration().node("properties", "events").getBoolean(true);
+        this.perKeyEvents = plugin.getConfiguration().node("properties", "per-key-events").getBoolean(false);
+
+        CommentedConfigurationNode persistenceConfig = plugin.getConfiguration().node("properties", "persistence");
+        if (persistenceConfig.node("enabled").getBoolean(false)) {
+            storage = new PlayerPropertyStorage(plugin.getDataDirectory().resolve("properties.dat"));
+            try {
+                LinkedHashMap<UUID, Map<String, Long>> deadlines = new LinkedHashMap<>();
+                int loaded = storage.load(playerProperties, persistenceConfig.node("max-age-seconds").getLong(300) * 1000, deadlines);
+                // the lifetime of the saved properties continues where it was
+                for (Entry<UUID, Map<String, Long>> playerDeadlines : deadlines.entrySet()) {
+                    UUID uuid = playerDeadlines.getKey();
+                    for (Entry<String, Long> deadline : playerDeadlines.getValue().entrySet()) {
+                        setExpiry(uuid, deadline.getKey(), playerProperties.get(uuid, deadline.getKey()), deadline.getValue());
+                    }
+                }
+                if (loaded > 0) {
+                    plugin.getLogger().info("Loaded the properties of " + loaded + " players");
+                }
+            } catch (IOException ex) {
+                plugin.getLogger().error("Could not load player properties", ex);
+            }
+            long saveInterval = Math.max(1, persistenceConfig.node("save-interval-seconds").getLong(30));
+            plugin.getServer().getScheduler().buildTask(plugin, this::saveProperties).delay(saveInterval, TimeUnit.SECONDS).repeat(saveInterval, TimeUnit.SECONDS).schedule();
+            plugin.getServer().getScheduler().buildTask(plugin, this::pruneLoadedProperties).delay(PRUNE_DELAY_SECONDS, TimeUnit.SECONDS).schedule();
+        } else {
+            storage = null;
+        }
+
+        plugin.getServer().getScheduler().buildTask(plugin, () -> {
+            // always advanced, so the wheel does not have to catch up on the ticks of an idle period later
+            ArrayList<Expiry> expired = new ArrayList<>();
+            expiryWheel.advance(System.currentTimeMillis(), expired::add);
+            if (!expired.isEmpty()) {
+                plugin.getGlobalClient().runInClientThread(() -> expired.forEach(this::expire));
+            }
+        }).repeat(EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS).schedule();
+
         plugin.getServer().getEventManager().register(plugin, this);
+        plugin.getGlobalClient().registerDataHandler(CHANNEL, this::handleData);
+        plugin.getGlobalClient().registerPresenceListener(new GlobalPresenceListener() {
+            @Override
+            public void onServerDisconnected(GlobalServer server) {
+                updateExchange.onServerDisconnected(server.getName());
+            }
+        });
+        plugin.getGlobalClient().setSpoolPolicy(CHANNEL, OutboundSpool.Policy.KEEP_LATEST, PlayerPropertiesCodec::getSpoolKey);
+        plugin.getGlobalClient().enableCompression(CHANNEL);
+    }
+
+    public void shutdown() {
+        flushWrites();
+        // the writes are sent by the client thread, wait for them before the connection is closed
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        plugin.getGlobalClient().runInClientThread(() -> flushed.complete(null));
+        try {
+            flushed.get(SHUTDOWN_FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            plugin.getLogger().warn("Could not send all property changes before shutdown");
+        }
+        if (storage != null) {
+            saveProperties();
+        }
+    }
+
+    private synchronized void saveProperties() {
+        try {
+            storage.save(playerProperties, this::getDeadline);
+        } catch (IOException ex) {
+            plugin.getLogger().error("Could not save player properties", ex);
+        }
+    }
+
+    /**
+     * Removes the loaded properties of players that left the network while this proxy was offline.
+     */
+    private void pruneLoadedProperties() {
+        ConnectionAPI connection = plugin.getConnectionAPI();
+        if (connection.getThisServer() == null) {
+            // not connected yet, we do not know who is online
+            plugin.getServer().getScheduler().buildTask(plugin, this::pruneLoadedProperties).delay(PRUNE_DELAY_SECONDS, TimeUnit.SECONDS).schedule();
+            return;
+        }
+        playerProperties.forEach((uuid, properties) -> {
+            GlobalPlayer player = connection.getPlayer(uuid);
+            if (player == null || !player.isOnAnyServer()) {
+                playerProperties.remove(uuid);
+                cancelExpiries(uuid);
+            }
+        });
     }
 
     @Subscribe
     public void onGlobalPlayerDisconnected(GlobalPlayerDisconnectedEvent e) {
         if (e.hasJustLeftTheNetwork()) {
-            try (AutoCloseableLockWrapper lock = writeLock.open()) {
-                playerProperties.remove(e.getPlayer().getUniqueId());
-            }
+            UUID uuid = e.getPlayer().getUniqueId();
+            writeQueue.removePlayer(uuid);
+            playerProperties.remove(uuid);
+            cancelExpiries(uuid);
         }
     }
 
     @Subscribe
     public void onGlobalServerConnected(GlobalServerConnectedEvent e) {
-        // send all properties
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
+        GlobalServer server = e.getServer();
+        updateExchange.onServerConnected(server.getName());
+        sendDigests(server);
+    }
+
+    /**
+     * Sends the digests of the properties of all local players, the server answers with the players it needs.
+     */
+    private void sendDigests(GlobalServer server) {
+        Object syncToken = new Object();
+        pendingSyncs.put(server.getName(), syncToken);
+        ChunkedMessageWriter digests = new ChunkedMessageWriter(PlayerPropertiesCodec.MESSAGE_SYNC_DIGESTS, MAX_CHUNK_SIZE, data -> sendToServer(server, data));
         try {
-            dos.writeByte(MESSAGE_MULTISET_PROPERTIES);
             for (Player p : plugin.getServer().getAllPlayers()) {
                 UUID uuid = p.getUniqueId();
-                try (AutoCloseableLockWrapper lock = readLock.open()) {
-                    HashMap<String, String> properties = playerProperties.get(uuid);
-                    if (properties != null) {
-                        dos.writeBoolean(true);
-                        dos.writeLong(uuid.getMostSignificantBits());
-                        dos.writeLong(uuid.getLeastSignificantBits());
-                        dos.writeInt(properties.size());
-                        for (Entry<String, String> entry : properties.entrySet()) {
-                            dos.writeUTF(entry.getKey());
-                            dos.writeUTF(entry.getValue());
-                        }
+                PropertySnapshot properties = playerProperties.getSnapshot(uuid);
+                DataOutputStream dos = digests.beginEntry();
+                PlayerPropertiesCodec.writeUUID(dos, uuid);
+                dos.writeLong(properties == null ? 0 : properties.getDigest());
+                digests.endEntry();
+            }
+            if (digests.finish(false) == 0) {
+                pendingSyncs.remove(server.getName(), syncToken);
+                return;
+            }
+        } catch (IOException ex) {
+            throw new Error("impossible");
+        }
+        // servers running an older version do not answer, they get all properties
+        plugin.getServer().getScheduler().buildTask(plugin, () -> {
+            if (pendingSyncs.remove(server.getName(), syncToken)) {
+                sendAllProperties(server);
+            }
+        }).delay(SYNC_FALLBACK_SECONDS, TimeUnit.SECONDS).schedule();
+    }
+
+    @Subscribe
+    public void onGlobalServerDisconnected(GlobalServerDisconnectedEvent e) {
+        pendingSyncs.remove(e.getServer().getName());
+    }
+
+    /**
+     * Sends the messages of the update exchange on the properties channel.
+     */
+    private class HubTransport implements PropertyTransport {
+        @Override
+        public void broadcast(byte[] data) {
+            plugin.getConnectionAPI().sendData(CHANNEL, data, true);
+        }
+
+        @Override
+        public void send(String server, byte[] data) {
+            GlobalServer target = plugin.getConnectionAPI().getServer(server);
+            if (target != null) {
+                sendToServer(target, data);
+            }
+        }
+
+        @Override
+        public void resync(String server) {
+            GlobalServer target = plugin.getConnectionAPI().getServer(server);
+            if (target != null) {
+                sendDigests(target);
+            }
+        }
+    }
+
+    /**
+     * Sends a message to a single server. Large messages are compressed if the server announced that it can inflate them.
+     */
+    private void sendToServer(GlobalServer server, byte[] data) {
+        plugin.getGlobalClient().sendData(server, CHANNEL, data);
+    }
+
+    private void sendAllProperties(GlobalServer server) {
+        ChunkedMessageWriter multiset = new ChunkedMessageWriter(PlayerPropertiesCodec.MESSAGE_MULTISET_PROPERTIES, MAX_CHUNK_SIZE, data -> sendToServer(server, data));
+        try {
+            for (Player p : plugin.getServer().getAllPlayers()) {
+                UUID uuid = p.getUniqueId();
+                Map<String, String> properties = playerProperties.get(uuid);
+                if (properties != null) {
+                    DataOutputStream dos = multiset.beginEntry();
+                    PlayerPropertiesCodec.writeUUID(dos, uuid);
+                    dos.writeInt(properties.size());
+                    for (Entry<String, String> entry : properties.entrySet()) {
+                        dos.writeUTF(entry.getKey());
+                        dos.writeUTF(entry.getValue());
                     }
+                    multiset.endEntry();
                 }
             }
-            dos.writeBoolean(false);
-            dos.close();
+            multiset.finish(false);
         } catch (IOException ex) {
             throw new Error("impossible");
         }
-        e.getServer().sendData(CHANNEL, baos.toByteArray());
+        for (Player p : plugin.getServer().getAllPlayers()) {
+            sendExpiries(server, p.getUniqueId());
+        }
     }
 
-    @Subscribe
+    /**
+     * Handles a message on the player properties channel and ignores data on other channels. The messages are received
+     * through a data handler now, this is no longer an event listener.
+     *
+     * @deprecated only kept for callers that passed events to it directly
+     */
+    @Deprecated
     public void onGlobalData(GlobalDataEvent e) {
         if (e.getChannel().equals(CHANNEL)) {
-            DataInputStream dis = new DataInputStream(e.getData());
-            try {
-                int type = dis.readByte();
-                if (type == MESSAGE_SET_PROPERTY) {
-                    UUID uuid = readUUID(dis);
-                    GlobalPlayer target = plugin.getConnectionAPI().getPlayer(uuid);
-                    String property = dis.readUTF();
-                    String value = dis.readUTF();
-                    try (AutoCloseableLockWrapper lock = writeLock.open()) {
-                        HashMap<String, String> properties = playerProperties.computeIfAbsent(uuid, theUuid -> new HashMap<>());
-                        properties.put(property, value);
-                    }
-                    plugin.getServer().getEventManager().fire(new GlobalPlayerPropertyChangedEvent(e.getSource(), target, property, value));
-                } else if (type == MESSAGE_DELETE_PROPERTY) {
-                    UUID uuid = readUUID(dis);
-                    GlobalPlayer target = plugin.getConnectionAPI().getPlayer(uuid);
-                    String property = dis.readUTF();
-                    boolean event = false;
-                    try (AutoCloseableLockWrapper lock = writeLock.open()) {
-                        HashMap<String, String> properties = playerProperties.get(uuid);
-                        if (properties != null) {
-                            properties.remove(property);
-                            if (properties.isEmpty()) {
-                                playerProperties.remove(uuid);
+            handleData(e);
+        }
+    }
+
+    private void handleData(GlobalDataEvent e) {
+        ByteArrayReader in = e.readData(READER.get());
+        try {
+            int type = in.readByte();
+            if (type == PlayerPropertiesCodec.MESSAGE_SET_PROPERTY) {
+                UUID uuid = in.readUUID();
+                GlobalPlayer target = plugin.getConnectionAPI().getPlayer(uuid);
+                String property = in.readUTF();
+                String value = in.readUTF();
+                cancelExpiries(uuid, Collections.singleton(property));
+                playerProperties.set(uuid, property, value);
+                fireChange(e.getSource(), target, property, value);
+            } else if (type == PlayerPropertiesCodec.MESSAGE_DELETE_PROPERTY) {
+                UUID uuid = in.readUUID();
+                GlobalPlayer target = plugin.getConnectionAPI().getPlayer(uuid);
+                String property = in.readUTF();
+                cancelExpiries(uuid, Collections.singleton(property));
+                if (playerProperties.set(uuid, property, null) != null) {
+                    fireChange(e.getSource(), target, property, null);
+                }
+            } else if (type == PlayerPropertiesCodec.MESSAGE_MULTISET_PROPERTIES) {
+                PlayerPropertiesCodec.decodeMultiSet(in, (uuid, values) -> {
+                    if (!values.isEmpty()) {
+                        GlobalPlayer target = plugin.getConnectionAPI().getPlayer(uuid);
+                        cancelExpiries(uuid, values.keySet());
+                        playerProperties.setAll(uuid, values);
+                        fireChanges(e.getSource(), target, values);
+                    }
+                });
+            } else if (type == PlayerPropertiesCodec.MESSAGE_SYNC_DIGESTS) {
+                GlobalServer source = e.getSource();
+                ChunkedMessageWriter request = new ChunkedMessageWriter(PlayerPropertiesCodec.MESSAGE_SYNC_REQUEST, MAX_CHUNK_SIZE, data -> sendToServer(source, data));
+                while (in.readBoolean()) {
+                    UUID uuid = in.readUUID();
+                    long digest = in.readLong();
+                    PropertySnapshot properties = playerProperties.getSnapshot(uuid);
+                    if (digest != (properties == null ? 0 : properties.getDigest())) {
+                        DataOutputStream dos = request.beginEntry();
+                        PlayerPropertiesCodec.writeUUID(dos, uuid);
+                        if (properties == null) {
+                            dos.writeInt(0);
+                        } else {
+                            dos.writeInt(properties.getValues().size());
+                            for (Entry<String, String> entry : properties.getValues().entrySet()) {
+                                dos.writeLong(PropertySnapshot.hashKey(entry.getKey()));
+                                dos.writeLong(PropertySnapshot.hashEntry(entry.getKey(), entry.getValue()));
                             }
-                            event = true;
+                        }
+                        request.endEntry();
+                    }
+                }
+                // always answer, so the source knows that we understand delta syncs
+                request.finish(true);
+            } else if (type == PlayerPropertiesCodec.MESSAGE_SYNC_REQUEST) {
+                GlobalServer source = e.getSource();
+                pendingSyncs.remove(source.getName());
+                ChunkedMessageWriter delta = new ChunkedMessageWriter(PlayerPropertiesCodec.MESSAGE_SYNC_DELTA, MAX_CHUNK_SIZE, data -> sendToServer(source, data));
+                ArrayList<UUID> deltaPlayers = new ArrayList<>();
+                while (in.readBoolean()) {
+                    UUID uuid = in.readUUID();
+                    int count = in.readInt();
+                    long[] knownKeys = new long[count];
+                    long[] knownEntries = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        knownKeys[i] = in.readLong();
+                        knownEntries[i] = in.readLong();
+                    }
+                    Arrays.sort(knownEntries);
+                    Map<String, String> properties = playerProperties.get(uuid);
+                    if (properties == null) {
+                        properties = Collections.emptyMap();
+                    }
+                    ArrayList<Entry<String, String>> changed = new ArrayList<>();
+                    long[] keys = new long[properties.size()];
+                    int keyCount = 0;
+                    for (Entry<String, String> entry : properties.entrySet()) {
+                        keys[keyCount++] = PropertySnapshot.hashKey(entry.getKey());
+                        if (Arrays.binarySearch(knownEntries, PropertySnapshot.hashEntry(entry.getKey(), entry.getValue())) < 0) {
+                            changed.add(entry);
                         }
                     }
-                    if (event) {
-                        plugin.getServer().getEventManager().fire(new GlobalPlayerPropertyChangedEvent(e.getSource(), target, property, null));
+                    Arrays.sort(keys);
+                    // only properties removed here are removed on the source, the others might have been set there
+                    // while this server was not connected
+                    Set<String> removed = playerProperties.getRemoved(uuid);
+                    long[] removedKeys = new long[removed.size()];
+                    int removedKeyCount = 0;
+                    for (String property : removed) {
+                        if (removedKeyCount == removedKeys.length) {
+                            break; // removed concurrently
+                        }
+                        removedKeys[removedKeyCount++] = PropertySnapshot.hashKey(property);
                     }
-                } else if (type == MESSAGE_MULTISET_PROPERTIES) {
-                    while (dis.readBoolean()) {
-                        UUID uuid = readUUID(dis);
+                    Arrays.sort(removedKeys, 0, removedKeyCount);
+                    int removedCount = 0;
+                    for (int i = 0; i < count; i++) {
+                        if (Arrays.binarySearch(keys, knownKeys[i]) < 0 && Arrays.binarySearch(removedKeys, 0, removedKeyCount, knownKeys[i]) >= 0) {
+                            knownKeys[removedCount++] = knownKeys[i];
+                        }
+                    }
+                    if (!changed.isEmpty() || removedCount > 0) {
+                        DataOutputStream dos = delta.beginEntry();
+                        PlayerPropertiesCodec.writeUUID(dos, uuid);
+                        dos.writeInt(changed.size());
+                        for (Entry<String, String> entry : changed) {
+                            dos.writeUTF(entry.getKey());
+                            dos.writeUTF(entry.getValue());
+                        }
+                        dos.writeInt(removedCount);
+                        for (int i = 0; i < removedCount; i++) {
+                            dos.writeLong(knownKeys[i]);
+                        }
+                        delta.endEntry();
+                        deltaPlayers.add(uuid);
+                    }
+                }
+                delta.finish(false);
+                for (UUID uuid : deltaPlayers) {
+                    sendExpiries(source, uuid);
+                }
+            } else if (type == PlayerPropertiesCodec.MESSAGE_SET_TYPED) {
+                UUID uuid = in.readUUID();
+                int count = in.readInt();
+                LinkedHashMap<String, String> values = new LinkedHashMap<>();
+                LinkedHashMap<String, PropertyValue> typedValues = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String property = in.readUTF();
+                    PropertyValue value = PropertyValue.read(in);
+                    values.put(property, value.toString());
+                    typedValues.put(property, value);
+                }
+                if (!values.isEmpty()) {
+                    GlobalPlayer target = plugin.getConnectionAPI().getPlayer(uuid);
+                    cancelExpiries(uuid, values.keySet());
+                    playerProperties.setAll(uuid, values, typedValues);
+                    if (values.size() == 1) {
+                        Entry<String, String> change = values.entrySet().iterator().next();
+                        fireChange(e.getSource(), target, change.getKey(), change.getValue());
+                    } else {
+                        fireChanges(e.getSource(), target, values);
+                    }
+                }
+            } else if (type == PlayerPropertiesCodec.MESSAGE_HELLO || type == PlayerPropertiesCodec.MESSAGE_DICTIONARY || type == PlayerPropertiesCodec.MESSAGE_RESYNC || type == PlayerPropertiesCodec.MESSAGE_UPDATE_V2) {
+                updateExchange.receive(e.getSource().getName(), type, in, (uuid, changes, typedChanges) -> {
+                    if (!changes.isEmpty()) {
                         GlobalPlayer target = plugin.getConnectionAPI().getPlayer(uuid);
-                        int propertiesCount = dis.readInt();
-                        if (propertiesCount > 0) {
-                            ArrayList<GlobalPlayerPropertyChangedEvent> events = new ArrayList<>();
-                            try (AutoCloseableLockWrapper lock = writeLock.open()) {
-                                HashMap<String, String> properties = playerProperties.computeIfAbsent(uuid, theUuid -> new HashMap<>());
-                                for (int i = 0; i < propertiesCount; i++) {
-                                    String property = dis.readUTF();
-                                    String value = dis.readUTF();
-                                    properties.put(property, value);
-                                    events.add(new GlobalPlayerPropertyChangedEvent(e.getSource(), target, property, value));
-                                }
+                        cancelExpiries(uuid, changes.keySet());
+                        PropertySnapshot previous = playerProperties.setAll(uuid, changes, typedChanges);
+                        if (changes.size() == 1) {
+                            // single changes fire the same event as the v1 set and delete messages
+                            Entry<String, String> change = changes.entrySet().iterator().next();
+                            if (change.getValue() != null || (previous != null && previous.getValues().containsKey(change.getKey()))) {
+                                fireChange(e.getSource(), target, change.getKey(), change.getValue());
                             }
-                            for (GlobalPlayerPropertyChangedEvent event : events) {
-                                plugin.getServer().getEventManager().fire(event);
+                        } else {
+                            fireChanges(e.getSource(), target, changes);
+                        }
+                    }
+                });
+            } else if (type == PlayerPropertiesCodec.MESSAGE_EXPIRE) {
+                UUID uuid = in.readUUID();
+                int count = in.readInt();
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < count; i++) {
+                    String property = in.readUTF();
+                    long ttlMillis = in.readLong();
+                    String value = playerProperties.get(uuid, property);
+                    if (value != null) {
+                        setExpiry(uuid, property, value, now + ttlMillis);
+                    }
+                }
+            } else if (type == PlayerPropertiesCodec.MESSAGE_SYNC_DELTA) {
+                while (in.readBoolean()) {
+                    UUID uuid = in.readUUID();
+                    GlobalPlayer target = plugin.getConnectionAPI().getPlayer(uuid);
+                    int changedCount = in.readInt();
+                    LinkedHashMap<String, String> changes = new LinkedHashMap<>();
+                    for (int i = 0; i < changedCount; i++) {
+                        String property = in.readUTF();
+                        String value = in.readUTF();
+                        changes.put(property, value);
+                    }
+                    int removedCount = in.readInt();
+                    if (removedCount > 0) {
+                        long[] removed = new long[removedCount];
+                        for (int i = 0; i < removedCount; i++) {
+                            removed[i] = in.readLong();
+                        }
+                        Arrays.sort(removed);
+                        Map<String, String> properties = playerProperties.get(uuid);
+                        if (properties != null) {
+                            for (String property : properties.keySet()) {
+                                if (Arrays.binarySearch(removed, PropertySnapshot.hashKey(property)) >= 0) {
+                                    changes.put(property, null);
+                                }
                             }
                         }
                     }
+                    if (!changes.isEmpty()) {
+                        cancelExpiries(uuid, changes.keySet());
+                        playerProperties.setAll(uuid, changes);
+                        fireChanges(e.getSource(), target, changes);
+                    }
                 }
-            } catch (IOException ex) {
-                plugin.getLogger().error("Could not parse PlayerProperties message", ex);
             }
+        } catch (IOException ex) {
+            plugin.getLogger().error("Could not parse PlayerProperties message", ex);
         }
     }
 
-    private UUID readUUID(DataInputStream dis) throws IOException {
-        long msb = dis.readLong();
-        long lsb = dis.readLong();
-        return new UUID(msb, lsb);
-    }
-
     @Override
     public boolean hasProperty(GlobalPlayer player, String property) {
-        try (AutoCloseableLockWrapper lock = readLock.open()) {
-            Preconditions.checkNotNull(player, "player");
-            Preconditions.checkNotNull(property, "property");
-            HashMap<String, String> properties = playerProperties.get(player.getUniqueId());
-            return properties != null && properties.containsKey(property);
-        }
+        Preconditions.checkNotNull(player, "player");
+        Preconditions.checkNotNull(property, "property");
+        return playerProperties.contains(player.getUniqueId(), property);
     }
 
     @Override
     public String getPropertyValue(GlobalPlayer player, String property) {
-        try (AutoCloseableLockWrapper lock = readLock.open()) {
-            Preconditions.checkNotNull(player, "player");
-            Preconditions.checkNotNull(property, "property");
-            HashMap<String, String> properties = playerProperties.get(player.getUniqueId());
-            return properties == null ? null : properties.get(property);
-        }
+        Preconditions.checkNotNull(player, "player");
+        Preconditions.checkNotNull(property, "property");
+        return playerProperties.get(player.getUniqueId(), property);
     }
 
     @Override
     public Map<String, String> getAllProperties(GlobalPlayer player) {
-        try (AutoCloseableLockWrapper lock = readLock.open()) {
-            Preconditions.checkNotNull(player, "player");
-            HashMap<String, String> properties = playerProperties.get(player.getUniqueId());
-            return properties == null ? Collections.emptyMap() : new HashMap<>(properties);
+        Preconditions.checkNotNull(player, "player");
+        Map<String, String> properties = playerProperties.get(player.getUniqueId());
+        return properties == null ? Collections.emptyMap() : properties;
+    }
+
+    @Override
+    public void indexProperty(String property) {
+        Preconditions.checkNotNull(property, "property");
+        playerProperties.addIndex(property);
+    }
+
+    @Override
+    public List<GlobalPlayer> getPlayersWithProperty(String property, String value) {
+        Preconditions.checkNotNull(property, "property");
+        Preconditions.checkNotNull(value, "value");
+        Set<UUID> uuids = playerProperties.getPlayersWithValue(property, value);
+        ArrayList<GlobalPlayer> players = new ArrayList<>(uuids.size());
+        for (UUID uuid : uuids) {
+            GlobalPlayer player = plugin.getConnectionAPI().getPlayer(uuid);
+            if (player != null) {
+                players.add(player);
+            }
         }
+        return players;
+    }
+
+    @Override
+    public void subscribe(String property, GlobalPropertyListener listener) {
+        subscriptions.subscribe(property, listener);
+    }
+
+    @Override
+    public void subscribePrefix(String prefix, GlobalPropertyListener listener) {
+        subscriptions.subscribePrefix(prefix, listener);
+    }
+
+    @Override
+    public void unsubscribe(GlobalPropertyListener listener) {
+        subscriptions.unsubscribe(listener);
     }
 
     @Override
     public void setPropertyValue(GlobalPlayer player, String property, String value) {
+        setPropertyValue(player, property, value, false);
+    }
+
+    @Override
+    public CompletableFuture<Void> setPropertyValueAsync(GlobalPlayer player, String property, String value) {
+        return setPropertyValue(player, property, value, true);
+    }
+
+    private CompletableFuture<Void> setPropertyValue(GlobalPlayer player, String property, String value, boolean async) {
         // Preconditions.checkState(Bukkit.isPrimaryThread(), "not on main thread!");
         Preconditions.checkNotNull(player, "player");
         Preconditions.checkNotNull(property, "property");
         Preconditions.checkArgument(player.isOnAnyServer(), "player is not online");
-        if (value == null) {
-            try (AutoCloseableLockWrapper lock = writeLock.open()) {
-                HashMap<String, String> properties = playerProperties.get(player.getUniqueId());
-                if (properties != null) {
-                    if (properties.remove(property) != null) {
-                        if (properties.isEmpty()) {
-                            playerProperties.remove(player.getUniqueId());
-                        }
+        PlayerPropertiesCodec.checkLength(property, "property");
+        if (value != null) {
+            PlayerPropertiesCodec.checkLength(value, "value");
+        }
+        cancelExpiries(player.getUniqueId(), Collections.singleton(property));
+        playerProperties.set(player.getUniqueId(), property, value);
+        CompletableFuture<Void> future = writeQueue.add(player.getUniqueId(), Collections.singletonMap(property, value), null, null, async);
+        fireChange(plugin.getConnectionAPI().getThisServer(), player, property, value);
+        return future;
+    }
+
+    @Override
+    public void setPropertyValue(GlobalPlayer player, String property, String value, long ttl, TimeUnit unit) {
+        Preconditions.checkNotNull(player, "player");
+        Preconditions.checkNotNull(property, "property");
+        Preconditions.checkNotNull(value, "value");
+        Preconditions.checkNotNull(unit, "unit");
+        Preconditions.checkArgument(ttl > 0, "ttl must be positive");
+        Preconditions.checkArgument(player.isOnAnyServer(), "player is not online");
+        PlayerPropertiesCodec.checkLength(property, "property");
+        PlayerPropertiesCodec.checkLength(value, "value");
+        UUID uuid = player.getUniqueId();
+        long deadline = System.currentTimeMillis() + Math.max(1, unit.toMillis(ttl));
+        playerProperties.set(uuid, property, value);
+        setExpiry(uuid, property, value, deadline);
+        writeQueue.add(uuid, Collections.singletonMap(property, value), null, Collections.singletonMap(property, deadline), false);
+        fireChange(plugin.getConnectionAPI().getThisServer(), player, property, value);
+    }
+
+    @Override
+    public void setPropertyValue(GlobalPlayer player, String property, PropertyValue value) {
+        Preconditions.checkNotNull(player, "player");
+        Preconditions.checkNotNull(property, "property");
+        Preconditions.checkNotNull(value, "value");
+        Preconditions.checkArgument(player.isOnAnyServer(), "player is not online");
+        PlayerPropertiesCodec.checkLength(property, "property");
+        UUID uuid = player.getUniqueId();
+        String string = value.toString();
+        PlayerPropertiesCodec.checkLength(string, "value");
+        cancelExpiries(uuid, Collections.singleton(property));
+        playerProperties.setAll(uuid, Collections.singletonMap(property, string), Collections.singletonMap(property, value));
+        writeQueue.add(uuid, Collections.singletonMap(property, string), Collections.singletonMap(property, value), null, false);
+        fireChange(plugin.getConnectionAPI().getThisServer(), player, property, string);
+    }
+
+    @Override
+    public PropertyValue getTypedPropertyValue(GlobalPlayer player, String property) {
+        Preconditions.checkNotNull(player, "player");
+        Preconditions.checkNotNull(property, "property");
+        return playerProperties.getTyped(player.getUniqueId(), property);
+    }
+
+    @Override
+    public int getIntProperty(GlobalPlayer player, String property, int defaultValue) {
+        PropertySnapshot properties = getSnapshot(player, property);
+        if (properties != null) {
+            PropertyValue typed = properties.getTypedValue(property);
+            if (typed != null && typed.getType() == PropertyValue.TYPE_INT) {
+                return typed.asInt();
+            }
+            String value = properties.getValues().get(property);
+            if (value != null) {
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    // not an int
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public long getLongProperty(GlobalPlayer player, String property, long defaultValue) {
+        PropertySnapshot properties = getSnapshot(player, property);
+        if (properties != null) {
+            PropertyValue typed = properties.getTypedValue(property);
+            if (typed != null && (typed.getType() == PropertyValue.TYPE_LONG || typed.getType() == PropertyValue.TYPE_INT)) {
+                return typed.asLong();
+            }
+            String value = properties.getValues().get(property);
+            if (value != null) {
+                try {
+                    return Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    // not a long
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public boolean getBooleanProperty(GlobalPlayer player, String property, boolean defaultValue) {
+        PropertySnapshot properties = getSnapshot(player, property);
+        if (properties != null) {
+            PropertyValue typed = properties.getTypedValue(property);
+            if (typed != null && typed.getType() == PropertyValue.TYPE_BOOLEAN) {
+                return typed.asBoolean();
+            }
+            String value = properties.getValues().get(property);
+            if ("true".equals(value)) {
+                return true;
+            } else if ("false".equals(value)) {
+                return false;
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public double getDoubleProperty(GlobalPlayer player, String property, double defaultValue) {
+        PropertySnapshot properties = getSnapshot(player, property);
+        if (properties != null) {
+            PropertyValue typed = properties.getTypedValue(property);
+            if (typed != null && typed.getType() != PropertyValue.TYPE_BOOLEAN && typed.getType() != PropertyValue.TYPE_BYTES) {
+                return typed.asDouble();
+            }
+            String value = properties.getValues().get(property);
+            if (value != null) {
+                try {
+                    return Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    // not a double
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public byte[] getBytesProperty(GlobalPlayer player, String property) {
+        PropertySnapshot properties = getSnapshot(player, property);
+        if (properties != null) {
+            PropertyValue typed = properties.getTypedValue(property);
+            if (typed != null && typed.getType() == PropertyValue.TYPE_BYTES) {
+                return typed.asBytes();
+            }
+            String value = properties.getValues().get(property);
+            if (value != null) {
+                try {
+                    return Base64.getDecoder().decode(value);
+                } catch (IllegalArgumentException e) {
+                    // not Base64
+                }
+            }
+        }
+        return null;
+    }
+
+    private PropertySnapshot getSnapshot(GlobalPlayer player, String property) {
+        Preconditions.checkNotNull(player, "player");
+        Preconditions.checkNotNull(property, "property");
+        return playerProperties.getSnapshot(player.getUniqueId());
+    }
+
+    @Override
+    public void setProperties(GlobalPlayer player, Map<String, String> properties) {
+        setProperties(player, properties, false);
+    }
+
+    @Override
+    public CompletableFuture<Void> setPropertiesAsync(GlobalPlayer player, Map<String, String> properties) {
+        return setProperties(player, properties, true);
+    }
+
+    private CompletableFuture<Void> setProperties(GlobalPlayer player, Map<String, String> properties, boolean async) {
+        Preconditions.checkNotNull(player, "player");
+        Preconditions.checkNotNull(properties, "properties");
+        Preconditions.checkArgument(player.isOnAnyServer(), "player is not online");
+        if (properties.isEmpty()) {
+            return async ? CompletableFuture.completedFuture(null) : null;
+        }
+        LinkedHashMap<String, String> values = new LinkedHashMap<>(properties);
+        Preconditions.checkArgument(!values.containsKey(null), "properties contains a null key");
+        for (Entry<String, String> entry : values.entrySet()) {
+            PlayerPropertiesCodec.checkLength(entry.getKey(), "property");
+            if (entry.getValue() != null) {
+                PlayerPropertiesCodec.checkLength(entry.getValue(), "value");
+            }
+        }
+        cancelExpiries(player.getUniqueId(), values.keySet());
+        playerProperties.setAll(player.getUniqueId(), values);
+        CompletableFuture<Void> future = writeQueue.add(player.getUniqueId(), values, null, null, async);
+        fireChanges(plugin.getConnectionAPI().getThisServer(), player, values);
+        return future;
+    }
+
+    private void fireChange(GlobalServer source, GlobalPlayer target, String property, String value) {
+        subscriptions.notify(source, target, property, value);
+        if (events) {
+            plugin.getGlobalClient().fireEvent(new GlobalPlayerPropertyChangedEvent(source, target, property, value));
+        }
+    }
+
+    private void fireChanges(GlobalServer source, GlobalPlayer target, Map<String, String> changes) {
+        subscriptions.notify(source, target, changes);
+        if (!events) {
+            return;
+        }
+        plugin.getGlobalClient().fireEvent(new GlobalPlayerPropertiesChangedEvent(source, target, Collections.unmodifiableMap(changes)));
+        if (perKeyEvents) {
+            for (Entry<String, String> entry : changes.entrySet()) {
+                plugin.getGlobalClient().fireEvent(new GlobalPlayerPropertyChangedEvent(source, target, entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Sends all property changes that are waiting for the coalescing window to end. They are sent by the client thread,
+     * in the same order as writes that are not coalesced.
+     */
+    public void flushWrites() {
+        writeQueue.flush();
+    }
+
+    private void sendWrites(Map<UUID, ? extends Map<String, String>> writes, Map<UUID, ? extends Map<String, PropertyValue>> typedWrites, Map<UUID, ? extends Map<String, Long>> expiryWrites) {
+        if (canUseV2()) {
+            updateExchange.sendUpdate(writes, typedWrites);
+        } else {
+            sendWritesV1(writes, typedWrites);
+        }
+        for (Entry<UUID, ? extends Map<String, Long>> deadlines : expiryWrites.entrySet()) {
+            if (!deadlines.getValue().isEmpty()) {
+                broadcastExpiries(deadlines.getKey(), deadlines.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns true if this server is connected and all other servers understand v2 messages. While the client is not
+     * connected, messages are spooled and sent later, when the other servers might have forgotten the key ids.
+     */
+    private boolean canUseV2() {
+        GlobalClientVelocity client = plugin.getGlobalClient();
+        if (!client.isConnected()) {
+            return false;
+        }
+        String thisServer = client.getThisServer().getName();
+        for (GlobalServer server : client.getServers()) {
+            if (!server.getName().equals(thisServer) && updateExchange.getVersion(server.getName()) < 2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sendWritesV1(Map<UUID, ? extends Map<String, String>> writes, Map<UUID, ? extends Map<String, PropertyValue>> typedWrites) {
+        Consumer<byte[]> broadcast = data -> plugin.getConnectionAPI().sendData(CHANNEL, data, true);
+        if (typedWrites.isEmpty()) {
+            sendWrites(writes, broadcast);
+            return;
+        }
+        // servers running an older version send no hello and ignore typed values, they get the string form. While not
+        // connected the messages are spooled and the servers are unknown, so the string form is sent too
+        GlobalClientVelocity client = plugin.getGlobalClient();
+        boolean allTyped = client.isConnected();
+        boolean anyTyped = false;
+        String thisServer = allTyped ? client.getThisServer().getName() : null;
+        if (allTyped) {
+            for (GlobalServer server : client.getServers()) {
+                if (!server.getName().equals(thisServer)) {
+                    boolean typed = updateExchange.getVersion(server.getName()) > 0;
+                    allTyped &= typed;
+                    anyTyped |= typed;
+                }
+            }
+        }
+        if (allTyped) {
+            sendTypedWrites(writes, typedWrites, broadcast);
+        } else if (!anyTyped) {
+            sendWrites(writes, broadcast);
+        } else {
+            for (GlobalServer server : client.getServers()) {
+                if (!server.getName().equals(thisServer)) {
+                    Consumer<byte[]> sender = data -> sendToServer(server, data);
+                    if (updateExchange.getVersion(server.getName()) > 0) {
+                        sendTypedWrites(writes, typedWrites, sender);
+                    } else {
+                        sendWrites(writes, sender);
                     }
                 }
             }
-            // send remove
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream(); DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeByte(MESSAGE_DELETE_PROPERTY);
-                dos.writeLong(player.getUniqueId().getMostSignificantBits());
-                dos.writeLong(player.getUniqueId().getLeastSignificantBits());
-                dos.writeUTF(property);
-                dos.close();
-                plugin.getConnectionAPI().sendData(CHANNEL, baos.toByteArray(), true);
-            } catch (IOException ex) {
-                throw new Error("impossible");
-            }
-        } else { // value != null
-            try (AutoCloseableLockWrapper lock = writeLock.open()) {
-                HashMap<String, String> properties = playerProperties.get(player.getUniqueId());
-                if (properties == null) {
-                    properties = new HashMap<>();
-                    playerProperties.put(player.getUniqueId(), properties);
-                }
-                properties.put(property, value);
-            }
-            // send set
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream(); DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeByte(MESSAGE_SET_PROPERTY);
-                dos.writeLong(player.getUniqueId().getMostSignificantBits());
-                dos.writeLong(player.getUniqueId().getLeastSignificantBits());
-                dos.writeUTF(property);
-                dos.writeUTF(value);
-                dos.close();
-                plugin.getConnectionAPI().sendData(CHANNEL, baos.toByteArray(), true);
-            } catch (IOException ex) {
-                throw new Error("impossible");
+        }
+    }
+
+    private void sendTypedWrites(Map<UUID, ? extends Map<String, String>> writes, Map<UUID, ? extends Map<String, PropertyValue>> typedWrites, Consumer<byte[]> sender) {
+        // typed values have their own message, the string writes only contain the other properties
+        LinkedHashMap<UUID, Map<String, String>> stringWrites = new LinkedHashMap<>(writes);
+        for (Entry<UUID, ? extends Map<String, PropertyValue>> typed : typedWrites.entrySet()) {
+            if (typed.getValue().isEmpty()) {
+                continue;
+            }
+            sender.accept(PlayerPropertiesCodec.encodeSetTyped(typed.getKey(), typed.getValue()));
+            Map<String, String> playerWrites = stringWrites.get(typed.getKey());
+            if (playerWrites != null) {
+                LinkedHashMap<String, String> remaining = new LinkedHashMap<>(playerWrites);
+                remaining.keySet().removeAll(typed.getValue().keySet());
+                if (remaining.isEmpty()) {
+                    stringWrites.remove(typed.getKey());
+                } else {
+                    stringWrites.put(typed.getKey(), remaining);
+                }
             }
         }
-        plugin.getServer().getEventManager().fire(new GlobalPlayerPropertyChangedEvent(plugin.getConnectionAPI().getThisServer(), player, property, value));
+        sendWrites(stringWrites, sender);
+    }
+
+    private void sendWrites(Map<UUID, ? extends Map<String, String>> writes, Consumer<byte[]> sender) {
+        if (writes.size() == 1) {
+            Entry<UUID, ? extends Map<String, String>> write = writes.entrySet().iterator().next();
+            if (write.getValue().size() == 1) {
+                Entry<String, String> change = write.getValue().entrySet().iterator().next();
+                if (change.getValue() == null) {
+                    sender.accept(PlayerPropertiesCodec.encodeDelete(write.getKey(), change.getKey()));
+                } else {
+                    sender.accept(PlayerPropertiesCodec.encodeSet(write.getKey(), change.getKey(), change.getValue()));
+                }
+                return;
+            }
+        }
+        // all new values in one message, removed properties individually
+        byte[] multiset = PlayerPropertiesCodec.encodeMultiSet(writes);
+        if (multiset != null) {
+            sender.accept(multiset);
+        }
+        for (Entry<UUID, ? extends Map<String, String>> write : writes.entrySet()) {
+            for (Entry<String, String> entry : write.getValue().entrySet()) {
+                if (entry.getValue() == null) {
+                    sender.accept(PlayerPropertiesCodec.encodeDelete(write.getKey(), entry.getKey()));
+                }
+            }
+        }
+    }
+
+    private void broadcastExpiries(UUID uuid, Map<String, Long> deadlines) {
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, Long> ttls = new LinkedHashMap<>();
+        for (Entry<String, Long> e : deadlines.entrySet()) {
+            ttls.put(e.getKey(), Math.max(1, e.getValue() - now));
+        }
+        plugin.getConnectionAPI().sendData(CHANNEL, PlayerPropertiesCodec.encodeExpire(uuid, ttls), true);
+    }
+
+    /**
+     * Sends the remaining lifetimes of the expiring properties of a player to a server after a resync.
+     */
+    private void sendExpiries(GlobalServer server, UUID uuid) {
+        ConcurrentHashMap<String, Timeout<Expiry>> playerExpiries = expiries.get(uuid);
+        if (playerExpiries == null || playerExpiries.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, Long> ttls = new LinkedHashMap<>();
+        for (Timeout<Expiry> timeout : playerExpiries.values()) {
+            ttls.put(timeout.getTask().property, Math.max(1, timeout.getDeadline() - now));
+        }
+        if (!ttls.isEmpty()) {
+            sendToServer(server, PlayerPropertiesCodec.encodeExpire(uuid, ttls));
+        }
+    }
+
+    /**
+     * @return the time at which the property with this value expires, or 0 if it does not expire
+     */
+    private long getDeadline(UUID uuid, String property, String value) {
+        ConcurrentHashMap<String, Timeout<Expiry>> playerExpiries = expiries.get(uuid);
+        Timeout<Expiry> timeout = playerExpiries == null ? null : playerExpiries.get(property);
+        return timeout != null && timeout.getTask().value.equals(value) ? timeout.getDeadline() : 0;
+    }
+
+    private void setExpiry(UUID uuid, String property, String value, long deadline) {
+        expiries.computeIfAbsent(uuid, theUuid -> new ConcurrentHashMap<>()).compute(property, (theProperty, timeout) -> {
+            if (timeout != null) {
+                expiryWheel.cancel(timeout);
+            }
+            return expiryWheel.schedule(new Expiry(uuid, property, value), deadline);
+        });
+    }
+
+    private void cancelExpiries(UUID uuid, Collection<String> properties) {
+        ConcurrentHashMap<String, Timeout<Expiry>> playerExpiries = expiries.get(uuid);
+        if (playerExpiries != null) {
+            for (String property : properties) {
+                Timeout<Expiry> timeout = playerExpiries.remove(property);
+                if (timeout != null) {
+                    expiryWheel.cancel(timeout);
+                }
+            }
+        }
+    }
+
+    private void cancelExpiries(UUID uuid) {
+        ConcurrentHashMap<String, Timeout<Expiry>> playerExpiries = expiries.remove(uuid);
+        if (playerExpiries != null) {
+            for (Timeout<Expiry> timeout : playerExpiries.values()) {
+                expiryWheel.cancel(timeout);
+            }
+        }
+    }
+
+    /**
+     * Removes an expired property. Called on the client thread on every server, so no delete message is sent.
+     */
+    private void expire(Expiry expiry) {
+        ConcurrentHashMap<String, Timeout<Expiry>> playerExpiries = expiries.get(expiry.uuid);
+        if (playerExpiries != null) {
+            playerExpiries.computeIfPresent(expiry.property, (property, timeout) -> timeout.getTask() == expiry ? null : timeout);
+        }
+        if (playerProperties.removeIfValue(expiry.uuid, expiry.property, expiry.value)) {
+            GlobalPlayer target = plugin.getConnectionAPI().getPlayer(expiry.uuid);
+            fireChange(plugin.getConnectionAPI().getThisServer(), target, expiry.property, null);
+        }
     }
 }
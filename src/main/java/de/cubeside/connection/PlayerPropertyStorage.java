@@ -0,0 +1,137 @@
+package de.cubeside.connection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+/**
+ * Saves the contents of a {@link PlayerPropertyStore} to a compact binary file, so a restarted proxy can serve the
+ * properties before the other servers have synced them. Properties with a lifetime are saved with the time at which they
+ * expire. Typed values are saved in their string form and are loaded as string properties.
+ */
+public class PlayerPropertyStorage {
+    private static final int MAGIC = 0x47435050; // GCPP
+    private static final int VERSION = 2;
+
+    @FunctionalInterface
+    public interface DeadlineLookup {
+        /**
+         * @return the time in milliseconds at which the property with this value expires, or 0 if it does not expire
+         */
+        long getDeadline(UUID uuid, String property, String value);
+    }
+
+    private final Path file;
+    private long savedModifications = -1;
+
+    public PlayerPropertyStorage(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the saved properties into the store, if the file exists and is not older than maxAgeMillis. Properties that
+     * expired in the meantime are skipped.
+     *
+     * @param deadlines
+     *            receives the expiry times of the loaded properties that have a lifetime
+     * @return the number of players that were loaded
+     */
+    public int load(PlayerPropertyStore store, long maxAgeMillis, Map<UUID, Map<String, Long>> deadlines) throws IOException {
+        if (Files.notExists(file)) {
+            return 0;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                throw new IOException("Unknown file format");
+            }
+            long savedAt = dis.readLong();
+            long now = System.currentTimeMillis();
+            if (now - savedAt > maxAgeMillis) {
+                return 0;
+            }
+            int players = 0;
+            while (dis.readBoolean()) {
+                UUID uuid = new UUID(dis.readLong(), dis.readLong());
+                int count = dis.readInt();
+                HashMap<String, String> values = new HashMap<>();
+                HashMap<String, Long> playerDeadlines = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String property = dis.readUTF();
+                    String value = dis.readUTF();
+                    long deadline = dis.readLong();
+                    if (deadline == 0) {
+                        values.put(property, value);
+                    } else if (deadline > now) {
+                        values.put(property, value);
+                        playerDeadlines.put(property, deadline);
+                    }
+                }
+                if (!values.isEmpty()) {
+                    store.setAll(uuid, values);
+                    if (!playerDeadlines.isEmpty()) {
+                        deadlines.put(uuid, playerDeadlines);
+                    }
+                    players++;
+                }
+            }
+            savedModifications = store.getModificationCount();
+            return players;
+        }
+    }
+
+    /**
+     * Saves the store if it was modified since it was last saved or loaded. The file is replaced atomically.
+     *
+     * @param deadlines
+     *            returns the expiry times of the properties with a lifetime
+     * @return true if the store was saved
+     */
+    public boolean save(PlayerPropertyStore store, DeadlineLookup deadlines) throws IOException {
+        long modifications = store.getModificationCount();
+        if (modifications == savedModifications) {
+            return false;
+        }
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(System.currentTimeMillis());
+            IOException[] error = new IOException[1];
+            store.forEach((uuid, snapshot) -> {
+                if (error[0] != null) {
+                    return;
+                }
+                try {
+                    Map<String, String> values = snapshot.getValues();
+                    dos.writeBoolean(true);
+                    dos.writeLong(uuid.getMostSignificantBits());
+                    dos.writeLong(uuid.getLeastSignificantBits());
+                    dos.writeInt(values.size());
+                    for (Entry<String, String> entry : values.entrySet()) {
+                        dos.writeUTF(entry.getKey());
+                        dos.writeUTF(entry.getValue());
+                        dos.writeLong(deadlines.getDeadline(uuid, entry.getKey(), entry.getValue()));
+                    }
+                } catch (IOException ex) {
+                    error[0] = ex;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            dos.writeBoolean(false);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedModifications = modifications;
+        return true;
+    }
+}
@@ -0,0 +1,258 @@
+package de.cubeside.connection;
+
+import com.google.common.base.Preconditions;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Stores the properties of all players. The properties of each player are kept in an immutable snapshot that is replaced
+ * atomically on every change, so reads never need a lock and snapshots can be handed out without copying them.
+ */
+public class PlayerPropertyStore {
+    private final ConcurrentHashMap<UUID, PropertySnapshot> playerProperties = new ConcurrentHashMap<>();
+    private final LongAdder modifications = new LongAdder();
+    /**
+     * For each indexed property the players by value. Updated while the player's entry in playerProperties is locked by
+     * compute, so the index always matches the latest snapshot of each player.
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Set<UUID>>> valueIndex = new ConcurrentHashMap<>();
+    /**
+     * For each player the properties that were removed and not set again since. Also updated while the player's entry in
+     * playerProperties is locked, and cleared when all properties of the player are removed.
+     */
+    private final ConcurrentHashMap<UUID, Set<String>> removedProperties = new ConcurrentHashMap<>();
+
+    /**
+     * @return the current snapshot of the properties of the player, or null if the player has no properties
+     */
+    public PropertySnapshot getSnapshot(UUID player) {
+        return playerProperties.get(player);
+    }
+
+    /**
+     * @return an immutable snapshot of the properties of the player, or null if the player has no properties
+     */
+    public Map<String, String> get(UUID player) {
+        PropertySnapshot properties = playerProperties.get(player);
+        return properties == null ? null : properties.getValues();
+    }
+
+    public String get(UUID player, String property) {
+        PropertySnapshot properties = playerProperties.get(player);
+        return properties == null ? null : properties.getValues().get(property);
+    }
+
+    /**
+     * @return the typed value of the property, or null if the property is not set or was set as string
+     */
+    public PropertyValue getTyped(UUID player, String property) {
+        PropertySnapshot properties = playerProperties.get(player);
+        return properties == null ? null : properties.getTypedValue(property);
+    }
+
+    public boolean contains(UUID player, String property) {
+        PropertySnapshot properties = playerProperties.get(player);
+        return properties != null && properties.getValues().containsKey(property);
+    }
+
+    /**
+     * Sets the value of a property. A value of null removes the property.
+     *
+     * @return the previous snapshot of the properties of the player, or null if the player had no properties
+     */
+    public PropertySnapshot set(UUID player, String property, String value) {
+        return setAll(player, Collections.singletonMap(property, value));
+    }
+
+    /**
+     * Sets the values of several properties at once. A value of null removes the property.
+     *
+     * @return the previous snapshot of the properties of the player, or null if the player had no properties
+     */
+    public PropertySnapshot setAll(UUID player, Map<String, String> values) {
+        return setAll(player, values, null);
+    }
+
+    /**
+     * Sets the values of several properties at once, some of them typed. The values must contain the string forms of the
+     * typed values.
+     *
+     * @return the previous snapshot of the properties of the player, or null if the player had no properties
+     */
+    public PropertySnapshot setAll(UUID player, Map<String, String> values, Map<String, PropertyValue> typedValues) {
+        PropertySnapshot[] previous = new PropertySnapshot[1];
+        PropertySnapshot current = playerProperties.compute(player, (uuid, properties) -> {
+            previous[0] = properties;
+            PropertySnapshot updated = values.isEmpty() ? properties : PropertySnapshot.update(properties, values, typedValues);
+            if (updated != properties) {
+                updateIndex(uuid, properties, updated);
+            }
+            updateRemoved(uuid, values);
+            return updated;
+        });
+        if (current != previous[0]) {
+            modifications.increment();
+        }
+        return previous[0];
+    }
+
+    /**
+     * Removes a property if it still has the given value.
+     *
+     * @return true if the property was removed
+     */
+    public boolean removeIfValue(UUID player, String property, String value) {
+        boolean[] removed = new boolean[1];
+        playerProperties.computeIfPresent(player, (uuid, properties) -> {
+            if (!value.equals(properties.getValues().get(property))) {
+                return properties;
+            }
+            removed[0] = true;
+            PropertySnapshot updated = PropertySnapshot.update(properties, Collections.singletonMap(property, null));
+            updateIndex(uuid, properties, updated);
+            updateRemoved(uuid, Collections.singletonMap(property, null));
+            return updated;
+        });
+        if (removed[0]) {
+            modifications.increment();
+        }
+        return removed[0];
+    }
+
+    /**
+     * Removes all properties of a player, and forgets which properties were removed before.
+     *
+     * @return the removed snapshot, or null if the player had no properties
+     */
+    public PropertySnapshot remove(UUID player) {
+        PropertySnapshot[] removed = new PropertySnapshot[1];
+        playerProperties.compute(player, (uuid, properties) -> {
+            removed[0] = properties;
+            if (properties != null) {
+                updateIndex(uuid, properties, null);
+            }
+            removedProperties.remove(uuid);
+            return null;
+        });
+        if (removed[0] != null) {
+            modifications.increment();
+        }
+        return removed[0];
+    }
+
+    /**
+     * Returns the properties of the player that were removed on this server or by a message received by this server, and
+     * not set again since. Removals are remembered until {@link #remove(UUID)} is called for the player.
+     *
+     * @return an unmodifiable live view
+     */
+    public Set<String> getRemoved(UUID player) {
+        Set<String> removed = removedProperties.get(player);
+        return removed == null ? Collections.emptySet() : Collections.unmodifiableSet(removed);
+    }
+
+    private void updateRemoved(UUID player, Map<String, String> changes) {
+        Set<String> removed = removedProperties.get(player);
+        for (Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                if (removed == null) {
+                    removed = removedProperties.computeIfAbsent(player, uuid -> ConcurrentHashMap.newKeySet());
+                }
+                removed.add(change.getKey());
+            } else if (removed != null) {
+                removed.remove(change.getKey());
+            }
+        }
+        if (removed != null && removed.isEmpty()) {
+            removedProperties.remove(player, removed);
+        }
+    }
+
+    /**
+     * Starts maintaining an index of the players by the value of this property. The index includes the values that are
+     * already stored.
+     */
+    public void addIndex(String property) {
+        if (valueIndex.putIfAbsent(property, new ConcurrentHashMap<>()) != null) {
+            return;
+        }
+        for (UUID player : playerProperties.keySet()) {
+            playerProperties.computeIfPresent(player, (uuid, properties) -> {
+                String value = properties.getValues().get(property);
+                if (value != null) {
+                    addToIndex(valueIndex.get(property), value, uuid);
+                }
+                return properties;
+            });
+        }
+    }
+
+    public boolean isIndexed(String property) {
+        return valueIndex.containsKey(property);
+    }
+
+    /**
+     * Returns the players that have this value for an indexed property. The returned set is an unmodifiable live view.
+     *
+     * @throws IllegalArgumentException
+     *             if the property is not indexed
+     */
+    public Set<UUID> getPlayersWithValue(String property, String value) {
+        ConcurrentHashMap<String, Set<UUID>> index = valueIndex.get(property);
+        Preconditions.checkArgument(index != null, "property " + property + " is not indexed");
+        Set<UUID> players = index.get(value);
+        return players == null ? Collections.emptySet() : Collections.unmodifiableSet(players);
+    }
+
+    private void updateIndex(UUID player, PropertySnapshot previous, PropertySnapshot current) {
+        if (valueIndex.isEmpty()) {
+            return;
+        }
+        for (Entry<String, ConcurrentHashMap<String, Set<UUID>>> e : valueIndex.entrySet()) {
+            String oldValue = previous == null ? null : previous.getValues().get(e.getKey());
+            String newValue = current == null ? null : current.getValues().get(e.getKey());
+            if (!Objects.equals(oldValue, newValue)) {
+                if (oldValue != null) {
+                    e.getValue().computeIfPresent(oldValue, (value, players) -> {
+                        players.remove(player);
+                        return players.isEmpty() ? null : players;
+                    });
+                }
+                if (newValue != null) {
+                    addToIndex(e.getValue(), newValue, player);
+                }
+            }
+        }
+    }
+
+    private static void addToIndex(ConcurrentHashMap<String, Set<UUID>> index, String value, UUID player) {
+        index.compute(value, (theValue, players) -> {
+            if (players == null) {
+                players = ConcurrentHashMap.newKeySet();
+            }
+            players.add(player);
+            return players;
+        });
+    }
+
+    /**
+     * Calls the action for the snapshots of all players that have properties.
+     */
+    public void forEach(BiConsumer<UUID, PropertySnapshot> action) {
+        playerProperties.forEach(action);
+    }
+
+    /**
+     * @return a number that changes whenever the properties of any player are changed
+     */
+    public long getModificationCount() {
+        return modifications.sum();
+    }
+}
@@ -0,0 +1,100 @@
+package de.cubeside.connection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Maps property keys to small ids for the v2 property codec. The sending server assigns the ids and announces each new id
+ * inline the first time it is used, the receiving servers keep one dictionary per sender. Each time the sender starts
+ * over with new ids it uses a new epoch, so ids of different epochs are never mixed up. Not thread safe.
+ */
+public class PropertyKeyDictionary {
+    private final int maxSize;
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final ArrayList<String> keys = new ArrayList<>();
+    private int epoch;
+
+    public PropertyKeyDictionary(int maxSize, int epoch) {
+        this.maxSize = maxSize;
+        this.epoch = epoch;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Removes all keys and starts a new epoch.
+     */
+    public void reset(int epoch) {
+        ids.clear();
+        keys.clear();
+        this.epoch = epoch;
+    }
+
+    /**
+     * @return the id of the key, or -1 if the key has no id
+     */
+    public int getId(String key) {
+        Integer id = ids.get(key);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Assigns the next id to a key that has no id yet.
+     *
+     * @return the new id, or -1 if the dictionary is full
+     */
+    public int add(String key) {
+        if (keys.size() >= maxSize) {
+            return -1;
+        }
+        int id = keys.size();
+        ids.put(key, id);
+        keys.add(key);
+        return id;
+    }
+
+    /**
+     * Sets the key of an id announced by another server.
+     *
+     * @return false if the id is outside of the allowed range
+     */
+    public boolean put(int id, String key) {
+        if (id < 0 || id >= maxSize) {
+            return false;
+        }
+        while (keys.size() <= id) {
+            keys.add(null);
+        }
+        String old = keys.set(id, key);
+        if (old != null) {
+            ids.remove(old);
+        }
+        ids.put(key, id);
+        return true;
+    }
+
+    /**
+     * @return the key with this id, or null if the id is unknown
+     */
+    public String get(int id) {
+        return id >= 0 && id < keys.size() ? keys.get(id) : null;
+    }
+
+    /**
+     * @return all keys in the order of their ids
+     */
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isFull() {
+        return keys.size() >= maxSize;
+    }
+}
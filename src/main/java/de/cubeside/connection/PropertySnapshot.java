@@ -0,0 +1,125 @@
+package de.cubeside.connection;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+/**
+ * An immutable snapshot of the properties of one player. The digest is an order independent hash over all entries, so
+ * two servers can find out whether they have the same properties for a player without sending the properties. Values
+ * that were set as {@link PropertyValue} are also kept typed, their string form is in the normal values and the digest.
+ */
+public final class PropertySnapshot {
+    private final Map<String, String> values;
+    private final Map<String, PropertyValue> typedValues;
+    private final long digest;
+
+    private PropertySnapshot(Map<String, String> values, Map<String, PropertyValue> typedValues, long digest) {
+        this.values = values;
+        this.typedValues = typedValues;
+        this.digest = digest;
+    }
+
+    /**
+     * @return an immutable map of all properties
+     */
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the typed value of the property, or null if the property is not set or was set as string
+     */
+    public PropertyValue getTypedValue(String property) {
+        return typedValues.get(property);
+    }
+
+    public long getDigest() {
+        return digest;
+    }
+
+    /**
+     * Creates a new snapshot by applying some changes to an existing snapshot. A value of null in the changes removes
+     * the property.
+     *
+     * @param previous
+     *            the previous snapshot, or null
+     * @return the new snapshot, the previous snapshot if nothing was changed, or null if there are no properties left
+     */
+    public static PropertySnapshot update(PropertySnapshot previous, Map<String, String> changes) {
+        return update(previous, changes, null);
+    }
+
+    /**
+     * Like {@link #update(PropertySnapshot, Map)}, but some of the changed properties are typed. The changes must contain
+     * the string forms of the typed values.
+     *
+     * @param typedChanges
+     *            the typed values of some of the changed properties, or null
+     */
+    public static PropertySnapshot update(PropertySnapshot previous, Map<String, String> changes, Map<String, PropertyValue> typedChanges) {
+        HashMap<String, String> newValues = previous == null ? new HashMap<>() : new HashMap<>(previous.values);
+        long newDigest = previous == null ? 0 : previous.digest;
+        boolean changed = false;
+        for (Entry<String, String> e : changes.entrySet()) {
+            String key = e.getKey();
+            String value = e.getValue();
+            String oldValue = value == null ? newValues.remove(key) : newValues.put(key, value);
+            if (Objects.equals(oldValue, value)) {
+                continue;
+            }
+            changed = true;
+            if (oldValue != null) {
+                newDigest -= hashEntry(key, oldValue);
+            }
+            if (value != null) {
+                newDigest += hashEntry(key, value);
+            }
+        }
+        Map<String, PropertyValue> newTypedValues = previous == null ? Collections.emptyMap() : previous.typedValues;
+        if (!newTypedValues.isEmpty() || (typedChanges != null && !typedChanges.isEmpty())) {
+            HashMap<String, PropertyValue> typed = new HashMap<>(newTypedValues);
+            typed.keySet().removeAll(changes.keySet());
+            if (typedChanges != null) {
+                typed.putAll(typedChanges);
+            }
+            if (!typed.equals(newTypedValues)) {
+                changed = true;
+                newTypedValues = typed.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(typed);
+            }
+        }
+        if (!changed) {
+            return previous;
+        }
+        return newValues.isEmpty() ? null : new PropertySnapshot(Collections.unmodifiableMap(newValues), newTypedValues, newDigest);
+    }
+
+    public static long hashKey(String key) {
+        return mix(hashString(key));
+    }
+
+    public static long hashEntry(String key, String value) {
+        return mix(hashString(key) * 0x9E3779B97F4A7C15L + hashString(value));
+    }
+
+    private static long hashString(String s) {
+        // FNV-1a over the chars
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
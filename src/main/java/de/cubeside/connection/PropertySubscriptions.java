@@ -0,0 +1,131 @@
+package de.cubeside.connection;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The property listeners by exact key and by key prefix. Lookups take no locks, and if no listener is registered a
+ * change is not looked up at all.
+ */
+public class PropertySubscriptions {
+    private static class PrefixSubscription {
+        private final String prefix;
+        private final GlobalPropertyListener listener;
+
+        private PrefixSubscription(String prefix, GlobalPropertyListener listener) {
+            this.prefix = prefix;
+            this.listener = listener;
+        }
+    }
+
+    private static final PrefixSubscription[] NO_PREFIXES = new PrefixSubscription[0];
+
+    private final ConcurrentHashMap<String, GlobalPropertyListener[]> exact = new ConcurrentHashMap<>();
+    // copy on write, guarded by this for writes
+    private volatile PrefixSubscription[] prefixes = NO_PREFIXES;
+    private volatile boolean empty = true;
+    private final Consumer<Throwable> exceptionHandler;
+
+    /**
+     * @param exceptionHandler
+     *            called with every exception thrown by a listener
+     */
+    public PropertySubscriptions(Consumer<Throwable> exceptionHandler) {
+        this.exceptionHandler = exceptionHandler;
+    }
+
+    public synchronized void subscribe(String property, GlobalPropertyListener listener) {
+        Preconditions.checkNotNull(property, "property");
+        Preconditions.checkNotNull(listener, "listener");
+        exact.compute(property, (theProperty, listeners) -> {
+            if (listeners == null) {
+                return new GlobalPropertyListener[] { listener };
+            }
+            GlobalPropertyListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+            newListeners[listeners.length] = listener;
+            return newListeners;
+        });
+        empty = false;
+    }
+
+    public synchronized void subscribePrefix(String prefix, GlobalPropertyListener listener) {
+        Preconditions.checkNotNull(prefix, "prefix");
+        Preconditions.checkNotNull(listener, "listener");
+        PrefixSubscription[] newPrefixes = Arrays.copyOf(prefixes, prefixes.length + 1);
+        newPrefixes[prefixes.length] = new PrefixSubscription(prefix, listener);
+        prefixes = newPrefixes;
+        empty = false;
+    }
+
+    /**
+     * Removes all subscriptions of the listener.
+     */
+    public synchronized void unsubscribe(GlobalPropertyListener listener) {
+        Preconditions.checkNotNull(listener, "listener");
+        for (String property : exact.keySet()) {
+            exact.computeIfPresent(property, (theProperty, listeners) -> {
+                int count = 0;
+                GlobalPropertyListener[] newListeners = new GlobalPropertyListener[listeners.length];
+                for (GlobalPropertyListener l : listeners) {
+                    if (l != listener) {
+                        newListeners[count++] = l;
+                    }
+                }
+                return count == 0 ? null : count == listeners.length ? listeners : Arrays.copyOf(newListeners, count);
+            });
+        }
+        int count = 0;
+        PrefixSubscription[] newPrefixes = new PrefixSubscription[prefixes.length];
+        for (PrefixSubscription subscription : prefixes) {
+            if (subscription.listener != listener) {
+                newPrefixes[count++] = subscription;
+            }
+        }
+        prefixes = count == 0 ? NO_PREFIXES : Arrays.copyOf(newPrefixes, count);
+        empty = exact.isEmpty() && count == 0;
+    }
+
+    /**
+     * Calls the listeners of the property in the calling thread.
+     */
+    public void notify(GlobalServer source, GlobalPlayer player, String property, String value) {
+        if (empty) {
+            return;
+        }
+        GlobalPropertyListener[] listeners = exact.get(property);
+        if (listeners != null) {
+            for (GlobalPropertyListener listener : listeners) {
+                call(listener, source, player, property, value);
+            }
+        }
+        for (PrefixSubscription subscription : prefixes) {
+            if (property.startsWith(subscription.prefix)) {
+                call(subscription.listener, source, player, property, value);
+            }
+        }
+    }
+
+    /**
+     * Calls the listeners of all changed properties in the calling thread.
+     */
+    public void notify(GlobalServer source, GlobalPlayer player, Map<String, String> changes) {
+        if (empty) {
+            return;
+        }
+        for (Entry<String, String> change : changes.entrySet()) {
+            notify(source, player, change.getKey(), change.getValue());
+        }
+    }
+
+    private void call(GlobalPropertyListener listener, GlobalServer source, GlobalPlayer player, String property, String value) {
+        try {
+            listener.onPropertyChanged(source, player, property, value);
+        } catch (Throwable t) {
+            exceptionHandler.accept(t);
+        }
+    }
+}
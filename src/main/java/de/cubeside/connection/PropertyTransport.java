@@ -0,0 +1,23 @@
+package de.cubeside.connection;
+
+/**
+ * Sends the messages of a {@link PropertyUpdateExchange}. {@link PlayerPropertiesImplementation} sends them over the hub
+ * connection, the load test through an in-process hub. Servers are identified by their name.
+ */
+public interface PropertyTransport {
+    /**
+     * Sends a message to all other servers.
+     */
+    public void broadcast(byte[] data);
+
+    /**
+     * Sends a message to one server. Messages sent to a server from one thread arrive in the order they were sent.
+     */
+    public void send(String server, byte[] data);
+
+    /**
+     * Called when a server could not decode an update of this server, after the dictionary was sent to it again. Sends
+     * all properties the server might have missed.
+     */
+    public void resync(String server);
+}
@@ -0,0 +1,118 @@
+package de.cubeside.connection;
+
+import de.cubeside.connection.PlayerPropertiesCodec.UpdateAction;
+import de.cubeside.connection.util.ByteArrayReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * The version negotiation and the key dictionaries of the v2 property updates. Sends the hello and the dictionary of this
+ * server to each server that connects, keeps the dictionaries of the other servers and asks a server for a resync when
+ * one of its updates can not be decoded. All messages are sent through a {@link PropertyTransport}.
+ */
+public class PropertyUpdateExchange {
+    private final PropertyTransport transport;
+    private final int maxDictionarySize;
+    private final Consumer<String> warningLogger;
+
+    // the ids of the keys sent by this server, guarded by itself. The first epoch is random, so the ids of an earlier run
+    // of this server are never mistaken for the current ones
+    private final PropertyKeyDictionary keyDictionary;
+    // the versions announced by the other servers
+    private final ConcurrentHashMap<String, Integer> versions = new ConcurrentHashMap<>();
+    // the key ids of the other servers, each only used by the thread that receives the data of its server, and the
+    // servers that were asked to send their dictionary again
+    private final ConcurrentHashMap<String, PropertyKeyDictionary> peerDictionaries = new ConcurrentHashMap<>();
+    private final Set<String> resyncRequested = ConcurrentHashMap.newKeySet();
+
+    public PropertyUpdateExchange(PropertyTransport transport, int maxDictionarySize, Consumer<String> warningLogger) {
+        this.transport = transport;
+        this.maxDictionarySize = maxDictionarySize;
+        this.warningLogger = warningLogger;
+        this.keyDictionary = new PropertyKeyDictionary(maxDictionarySize, ThreadLocalRandom.current().nextInt());
+    }
+
+    /**
+     * @return the codec version announced by the server, or 0 if it did not send a hello
+     */
+    public int getVersion(String server) {
+        return versions.getOrDefault(server, 0);
+    }
+
+    /**
+     * Sends the hello and the dictionary of this server to a server that connected.
+     */
+    public void onServerConnected(String server) {
+        synchronized (keyDictionary) {
+            // both from this thread, so the server always gets the dictionary after the hello
+            transport.send(server, PlayerPropertiesCodec.encodeHello());
+            transport.send(server, PlayerPropertiesCodec.encodeDictionary(keyDictionary));
+        }
+    }
+
+    public void onServerDisconnected(String server) {
+        versions.remove(server);
+        peerDictionaries.remove(server);
+        resyncRequested.remove(server);
+    }
+
+    /**
+     * Handles a hello, dictionary, resync or v2 update message. Must be called in order for the messages of each server.
+     *
+     * @param type
+     *            the type of the message, already read from the reader
+     * @param action
+     *            receives the changes of an update
+     * @return false if the message has another type
+     */
+    public boolean receive(String source, int type, ByteArrayReader in, UpdateAction action) throws IOException {
+        if (type == PlayerPropertiesCodec.MESSAGE_HELLO) {
+            versions.put(source, in.readVarInt());
+        } else if (type == PlayerPropertiesCodec.MESSAGE_DICTIONARY) {
+            peerDictionaries.put(source, PlayerPropertiesCodec.decodeDictionary(in, maxDictionarySize));
+            resyncRequested.remove(source);
+        } else if (type == PlayerPropertiesCodec.MESSAGE_RESYNC) {
+            synchronized (keyDictionary) {
+                transport.send(source, PlayerPropertiesCodec.encodeDictionary(keyDictionary));
+            }
+            transport.resync(source);
+        } else if (type == PlayerPropertiesCodec.MESSAGE_UPDATE_V2) {
+            // sent before the dictionary arrived or with ids of another epoch, for example replayed from the spool after
+            // a reconnect. The resync sends the dictionary and all changed properties again
+            if (!PlayerPropertiesCodec.decodeUpdate(in, peerDictionaries.get(source), action) && resyncRequested.add(source)) {
+                warningLogger.accept("Could not decode the property changes from " + source + ", requesting a resync");
+                transport.send(source, PlayerPropertiesCodec.encodeResync());
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Broadcasts changes as a v2 update. Must only be used if all other servers announced version 2.
+     *
+     * @param writes
+     *            the changed properties with their string form, null for removed properties
+     * @param typedWrites
+     *            the typed values of some of the changed properties
+     */
+    public void sendUpdate(Map<UUID, ? extends Map<String, String>> writes, Map<UUID, ? extends Map<String, PropertyValue>> typedWrites) {
+        synchronized (keyDictionary) {
+            if (keyDictionary.isFull()) {
+                // keys without an id are sent in full, start over so the keys used from now on get ids
+                keyDictionary.reset(keyDictionary.getEpoch() + 1);
+                transport.broadcast(PlayerPropertiesCodec.encodeDictionary(keyDictionary));
+            }
+            byte[] update = PlayerPropertiesCodec.encodeUpdate(writes, typedWrites, keyDictionary);
+            if (update != null) {
+                transport.broadcast(update);
+            }
+        }
+    }
+}
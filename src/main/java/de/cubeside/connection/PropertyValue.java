@@ -0,0 +1,189 @@
+package de.cubeside.connection;
+
+import com.google.common.base.Preconditions;
+import de.cubeside.connection.util.ByteArrayReader;
+import de.cubeside.connection.util.ByteArrayWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * An immutable typed property value. Numbers and booleans are kept unboxed. Every typed value also has a string form,
+ * which is returned by the string accessors of {@link PlayerPropertiesAPI} and used for resyncs and persistence.
+ */
+public final class PropertyValue {
+    public static final int TYPE_INT = 1;
+    public static final int TYPE_LONG = 2;
+    public static final int TYPE_BOOLEAN = 3;
+    public static final int TYPE_DOUBLE = 4;
+    public static final int TYPE_BYTES = 5;
+
+    private final int type;
+    private final long bits;
+    private final byte[] bytes;
+    private final String string;
+
+    private PropertyValue(int type, long bits, byte[] bytes, String string) {
+        this.type = type;
+        this.bits = bits;
+        this.bytes = bytes;
+        this.string = string;
+    }
+
+    public static PropertyValue ofInt(int value) {
+        return new PropertyValue(TYPE_INT, value, null, Integer.toString(value));
+    }
+
+    public static PropertyValue ofLong(long value) {
+        return new PropertyValue(TYPE_LONG, value, null, Long.toString(value));
+    }
+
+    public static PropertyValue ofBoolean(boolean value) {
+        return new PropertyValue(TYPE_BOOLEAN, value ? 1 : 0, null, Boolean.toString(value));
+    }
+
+    public static PropertyValue ofDouble(double value) {
+        return new PropertyValue(TYPE_DOUBLE, Double.doubleToRawLongBits(value), null, Double.toString(value));
+    }
+
+    /**
+     * The string form of binary values is Base64.
+     */
+    public static PropertyValue ofBytes(byte[] value) {
+        Preconditions.checkNotNull(value, "value");
+        byte[] copy = value.clone();
+        return new PropertyValue(TYPE_BYTES, 0, copy, Base64.getEncoder().encodeToString(copy));
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int asInt() {
+        Preconditions.checkState(type == TYPE_INT, "not an int value");
+        return (int) bits;
+    }
+
+    /**
+     * Returns the value of an int or long value.
+     */
+    public long asLong() {
+        Preconditions.checkState(type == TYPE_INT || type == TYPE_LONG, "not a long value");
+        return bits;
+    }
+
+    public boolean asBoolean() {
+        Preconditions.checkState(type == TYPE_BOOLEAN, "not a boolean value");
+        return bits != 0;
+    }
+
+    /**
+     * Returns the value of a double, int or long value.
+     */
+    public double asDouble() {
+        Preconditions.checkState(type == TYPE_DOUBLE || type == TYPE_INT || type == TYPE_LONG, "not a double value");
+        return type == TYPE_DOUBLE ? Double.longBitsToDouble(bits) : bits;
+    }
+
+    public byte[] asBytes() {
+        Preconditions.checkState(type == TYPE_BYTES, "not a binary value");
+        return bytes.clone();
+    }
+
+    void write(DataOutputStream dos) throws IOException {
+        dos.writeByte(type);
+        if (type == TYPE_INT) {
+            dos.writeInt((int) bits);
+        } else if (type == TYPE_LONG || type == TYPE_DOUBLE) {
+            dos.writeLong(bits);
+        } else if (type == TYPE_BOOLEAN) {
+            dos.writeBoolean(bits != 0);
+        } else {
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+    }
+
+    static PropertyValue read(ByteArrayReader in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case TYPE_INT:
+                return ofInt(in.readInt());
+            case TYPE_LONG:
+                return ofLong(in.readLong());
+            case TYPE_BOOLEAN:
+                return ofBoolean(in.readBoolean());
+            case TYPE_DOUBLE:
+                return ofDouble(in.readDouble());
+            case TYPE_BYTES:
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Negative length " + length);
+                }
+                byte[] data = in.readBytes(length);
+                return new PropertyValue(TYPE_BYTES, 0, data, Base64.getEncoder().encodeToString(data));
+            default:
+                throw new IOException("Unknown property value type " + type);
+        }
+    }
+
+    /**
+     * Writes the value for the v2 codec: numbers as zigzag varints and binary values with a varint length.
+     */
+    void writeCompact(ByteArrayWriter out) {
+        out.writeByte(type);
+        if (type == TYPE_INT || type == TYPE_LONG) {
+            out.writeVarLong((bits << 1) ^ (bits >> 63));
+        } else if (type == TYPE_DOUBLE) {
+            out.writeLong(bits);
+        } else if (type == TYPE_BOOLEAN) {
+            out.writeBoolean(bits != 0);
+        } else {
+            out.writeVarInt(bytes.length);
+            out.writeBytes(bytes);
+        }
+    }
+
+    static PropertyValue readCompact(ByteArrayReader in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case TYPE_INT:
+            case TYPE_LONG:
+                long zigzag = in.readVarLong();
+                long value = (zigzag >>> 1) ^ -(zigzag & 1);
+                return type == TYPE_INT ? ofInt((int) value) : ofLong(value);
+            case TYPE_BOOLEAN:
+                return ofBoolean(in.readBoolean());
+            case TYPE_DOUBLE:
+                return ofDouble(in.readDouble());
+            case TYPE_BYTES:
+                byte[] data = in.readBytes(in.readVarInt());
+                return new PropertyValue(TYPE_BYTES, 0, data, Base64.getEncoder().encodeToString(data));
+            default:
+                throw new IOException("Unknown property value type " + type);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return type == TYPE_BYTES ? Arrays.hashCode(bytes) : Long.hashCode(bits) * 31 + type;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof PropertyValue)) {
+            return false;
+        }
+        PropertyValue other = (PropertyValue) obj;
+        return type == other.type && bits == other.bits && Arrays.equals(bytes, other.bytes);
+    }
+
+    /**
+     * Returns the string form of the value.
+     */
+    @Override
+    public String toString() {
+        return string;
+    }
+}
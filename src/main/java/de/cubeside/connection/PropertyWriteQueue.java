@@ -0,0 +1,173 @@
+package de.cubeside.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Collects the property changes made on this server until the coalescing window ends and passes them to a
+ * {@link Sender} as one batch. The batches, and the changes that are not coalesced, are all passed through one ordered
+ * executor, for example the client thread, so the changes reach the other servers in the order they were made.
+ */
+public class PropertyWriteQueue {
+    @FunctionalInterface
+    public interface Sender {
+        /**
+         * Sends a batch of changes. Called by the executor of the queue.
+         *
+         * @param writes
+         *            the changed properties with their string form, null for removed properties
+         * @param typedWrites
+         *            the typed values of some of the changed properties
+         * @param expiryWrites
+         *            the expiry times of properties set with a lifetime
+         */
+        void send(Map<UUID, ? extends Map<String, String>> writes, Map<UUID, ? extends Map<String, PropertyValue>> typedWrites, Map<UUID, ? extends Map<String, Long>> expiryWrites);
+    }
+
+    private final long coalesceMillis;
+    private final Executor sendExecutor;
+    private final Consumer<Runnable> flushScheduler;
+    private final Sender sender;
+
+    private final LinkedHashMap<UUID, LinkedHashMap<String, String>> pendingWrites = new LinkedHashMap<>();
+    // guarded by pendingWrites, the typed values and the deadlines of properties set with a lifetime
+    private final LinkedHashMap<UUID, LinkedHashMap<String, PropertyValue>> pendingTypedWrites = new LinkedHashMap<>();
+    private final LinkedHashMap<UUID, LinkedHashMap<String, Long>> pendingExpiries = new LinkedHashMap<>();
+    private final ArrayList<CompletableFuture<Void>> pendingFutures = new ArrayList<>();
+    private boolean flushScheduled;
+
+    /**
+     * @param coalesceMillis
+     *            the length of the coalescing window, changes are passed to the executor at once if it is not positive
+     * @param sendExecutor
+     *            runs the sends in the order they were added
+     * @param flushScheduler
+     *            runs the given task once the coalescing window ended
+     */
+    public PropertyWriteQueue(long coalesceMillis, Executor sendExecutor, Consumer<Runnable> flushScheduler, Sender sender) {
+        this.coalesceMillis = coalesceMillis;
+        this.sendExecutor = sendExecutor;
+        this.flushScheduler = flushScheduler;
+        this.sender = sender;
+    }
+
+    /**
+     * Sends the changes or queues them until the coalescing window ends.
+     *
+     * @param typed
+     *            the typed values of some of the changed properties, or null
+     * @param deadlines
+     *            the expiry times of properties set with a lifetime, or null
+     * @param async
+     *            if a future for the sending of the changes is needed
+     * @return a future that is completed when the changes were sent if async is true, null otherwise
+     */
+    public CompletableFuture<Void> add(UUID uuid, Map<String, String> values, Map<String, PropertyValue> typed, Map<String, Long> deadlines, boolean async) {
+        CompletableFuture<Void> future = async ? new CompletableFuture<>() : null;
+        if (coalesceMillis <= 0) {
+            Map<UUID, Map<String, String>> writes = Collections.singletonMap(uuid, values);
+            Map<UUID, Map<String, PropertyValue>> typedWrites = typed == null ? Collections.emptyMap() : Collections.singletonMap(uuid, typed);
+            Map<UUID, Map<String, Long>> expiryWrites = deadlines == null ? Collections.emptyMap() : Collections.singletonMap(uuid, deadlines);
+            // all writes are sent from the executor, so they reach the other servers in the order they were made
+            if (async) {
+                sendExecutor.execute(() -> send(writes, typedWrites, expiryWrites, Collections.singletonList(future)));
+            } else {
+                sendExecutor.execute(() -> sender.send(writes, typedWrites, expiryWrites));
+            }
+            return future;
+        }
+        boolean scheduleFlush;
+        synchronized (pendingWrites) {
+            pendingWrites.computeIfAbsent(uuid, theUuid -> new LinkedHashMap<>()).putAll(values);
+            updatePending(pendingTypedWrites, uuid, values.keySet(), typed);
+            updatePending(pendingExpiries, uuid, values.keySet(), deadlines);
+            if (future != null) {
+                pendingFutures.add(future);
+            }
+            scheduleFlush = !flushScheduled;
+            flushScheduled = true;
+        }
+        if (scheduleFlush) {
+            flushScheduler.accept(this::flush);
+        }
+        return future;
+    }
+
+    /**
+     * Removes the pending entries of the changed properties and adds the new ones.
+     */
+    private static <V> void updatePending(LinkedHashMap<UUID, LinkedHashMap<String, V>> pending, UUID uuid, Set<String> changed, Map<String, V> newValues) {
+        LinkedHashMap<String, V> playerPending = pending.get(uuid);
+        if (playerPending != null) {
+            playerPending.keySet().removeAll(changed);
+        }
+        if (newValues != null) {
+            pending.computeIfAbsent(uuid, theUuid -> new LinkedHashMap<>()).putAll(newValues);
+        }
+    }
+
+    /**
+     * Drops the pending changes of a player that left the network. Sending them after the quit would recreate the
+     * properties of an offline player on the other servers.
+     */
+    public void removePlayer(UUID uuid) {
+        synchronized (pendingWrites) {
+            pendingWrites.remove(uuid);
+            pendingTypedWrites.remove(uuid);
+            pendingExpiries.remove(uuid);
+        }
+    }
+
+    /**
+     * Passes all changes that are waiting for the coalescing window to end to the executor. May be called from any
+     * thread.
+     */
+    public void flush() {
+        LinkedHashMap<UUID, LinkedHashMap<String, String>> writes;
+        LinkedHashMap<UUID, LinkedHashMap<String, PropertyValue>> typedWrites;
+        LinkedHashMap<UUID, LinkedHashMap<String, Long>> expiryWrites;
+        ArrayList<CompletableFuture<Void>> futures;
+        synchronized (pendingWrites) {
+            writes = new LinkedHashMap<>(pendingWrites);
+            pendingWrites.clear();
+            typedWrites = new LinkedHashMap<>(pendingTypedWrites);
+            pendingTypedWrites.clear();
+            expiryWrites = new LinkedHashMap<>(pendingExpiries);
+            pendingExpiries.clear();
+            futures = new ArrayList<>(pendingFutures);
+            pendingFutures.clear();
+            flushScheduled = false;
+            if (!writes.isEmpty()) {
+                // passed to the executor while holding the lock, so a later flush can not overtake this one
+                sendExecutor.execute(() -> send(writes, typedWrites, expiryWrites, futures));
+                return;
+            }
+        }
+        // nothing queued, or only writes of players that left the network since
+        for (CompletableFuture<Void> future : futures) {
+            future.complete(null);
+        }
+    }
+
+    private void send(Map<UUID, ? extends Map<String, String>> writes, Map<UUID, ? extends Map<String, PropertyValue>> typedWrites, Map<UUID, ? extends Map<String, Long>> expiryWrites, List<CompletableFuture<Void>> futures) {
+        try {
+            sender.send(writes, typedWrites, expiryWrites);
+        } catch (RuntimeException ex) {
+            for (CompletableFuture<Void> future : futures) {
+                future.completeExceptionally(ex);
+            }
+            throw ex;
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.complete(null);
+        }
+    }
+}
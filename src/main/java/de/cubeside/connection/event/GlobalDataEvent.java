@@ -2,21 +2,73 @@ package de.cubeside.connection.event;
 
 import de.cubeside.connection.GlobalPlayer;
 import de.cubeside.connection.GlobalServer;
+import de.cubeside.connection.util.ByteArrayReader;
+import de.cubeside.connection.util.Compression;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 
 public class GlobalDataEvent {
     private final GlobalServer source;
     private final GlobalPlayer targetPlayer;
 
     private final String channel;
-    private final byte[] data;
+    private volatile byte[] data;
+    private final int length;
+    private byte[] compressedData;
 
     public GlobalDataEvent(GlobalServer source, GlobalPlayer targetPlayer, String channel, byte[] data) {
         this.source = source;
         this.targetPlayer = targetPlayer;
         this.channel = channel;
         this.data = data;
+        this.length = data.length;
+    }
+
+    /**
+     * Creates an event for a payload framed by {@link Compression#compress(byte[], int)}. Compressed data is only inflated
+     * when it is accessed for the first time.
+     *
+     * @throws IllegalArgumentException
+     *             if the frame is invalid
+     */
+    public GlobalDataEvent(GlobalServer source, GlobalPlayer targetPlayer, String channel, byte[] framedData, boolean framed) {
+        this.source = source;
+        this.targetPlayer = targetPlayer;
+        this.channel = channel;
+        if (!framed) {
+            this.data = framedData;
+            this.length = framedData.length;
+        } else if (framedData.length >= 5 && framedData[0] == Compression.FLAG_DEFLATE) {
+            this.compressedData = framedData;
+            this.length = Compression.readInt(framedData, 1);
+            if (length < 0 || length > Compression.MAX_UNCOMPRESSED_LENGTH) {
+                throw new IllegalArgumentException("Invalid uncompressed length " + length);
+            }
+        } else {
+            throw new IllegalArgumentException("Invalid data frame");
+        }
+    }
+
+    private byte[] data() {
+        byte[] d = data;
+        if (d == null) {
+            synchronized (this) {
+                d = data;
+                if (d == null) {
+                    try {
+                        d = Compression.inflate(ByteBuffer.wrap(compressedData, 5, compressedData.length - 5), length);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not inflate data on channel " + channel, e);
+                    }
+                    compressedData = null;
+                    data = d;
+                }
+            }
+        }
+        return d;
     }
 
     public GlobalServer getSource() {
@@ -32,6 +84,36 @@ public class GlobalDataEvent {
     }
 
     public InputStream getData() {
-        return new ByteArrayInputStream(data);
+        return new ByteArrayInputStream(data(), 0, length);
+    }
+
+    public int getDataLength() {
+        return length;
+    }
+
+    /**
+     * Returns a read-only buffer backed by the data of this event. The data is not copied.
+     */
+    public ByteBuffer getDataBuffer() {
+        return ByteBuffer.wrap(data(), 0, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a read-only buffer backed by a part of the data of this event. The data is not copied.
+     */
+    public ByteBuffer getDataBuffer(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", data length " + this.length);
+        }
+        return ByteBuffer.wrap(data(), offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Resets the given reader to the start of the data of this event. The data is not copied.
+     *
+     * @return the given reader
+     */
+    public ByteArrayReader readData(ByteArrayReader reader) {
+        return reader.reset(data(), 0, length);
     }
 }
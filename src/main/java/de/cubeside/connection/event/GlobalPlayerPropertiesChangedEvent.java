@@ -0,0 +1,28 @@
+package de.cubeside.connection.event;
+
+import de.cubeside.connection.GlobalPlayer;
+import de.cubeside.connection.GlobalServer;
+import java.util.Map;
+
+/**
+ * Fired once per player when several properties of the player were changed by a single update, for example a resync or
+ * a bulk write. Changes of single properties are only reported as {@link GlobalPlayerPropertyChangedEvent}. Unless
+ * <code>properties.per-key-events</code> is enabled in the config, no {@link GlobalPlayerPropertyChangedEvent} is fired
+ * for the properties contained in this event. Neither event is fired if <code>properties.events</code> is disabled.
+ */
+public class GlobalPlayerPropertiesChangedEvent extends GlobalPlayerEvent {
+    private final Map<String, String> changes;
+
+    public GlobalPlayerPropertiesChangedEvent(GlobalServer server, GlobalPlayer player, Map<String, String> changes) {
+        super(server, player);
+        this.changes = changes;
+    }
+
+    /**
+     * @return an immutable map of the changed properties and their new values. A value of null means that the property
+     *         was removed.
+     */
+    public Map<String, String> getChanges() {
+        return changes;
+    }
+}
@@ -0,0 +1,269 @@
+package de.cubeside.connection.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * A reader for primitive values in a byte array. The values are read in the same format as {@link java.io.DataInputStream}
+ * uses, with additional support for variable length integers and standard UTF-8 strings. A reader can be reused for any
+ * number of arrays by calling {@link #reset(byte[])}, and apart from the returned strings and UUIDs it does not allocate.
+ * A reader must not be used by multiple threads at the same time.
+ */
+public class ByteArrayReader {
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] data;
+    private int position;
+    private int limit;
+
+    private char[] chars = new char[64];
+
+    public ByteArrayReader() {
+        this(EMPTY);
+    }
+
+    public ByteArrayReader(byte[] data) {
+        reset(data);
+    }
+
+    public ByteArrayReader reset(byte[] data) {
+        return reset(data, 0, data.length);
+    }
+
+    public ByteArrayReader reset(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + data.length);
+        }
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+        return this;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public int remaining() {
+        return limit - position;
+    }
+
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    private void require(int count) throws EOFException {
+        if (count < 0 || limit - position < count) {
+            throw new EOFException();
+        }
+    }
+
+    public void skip(int count) throws EOFException {
+        require(count);
+        position += count;
+    }
+
+    public byte readByte() throws EOFException {
+        require(1);
+        return data[position++];
+    }
+
+    public int readUnsignedByte() throws EOFException {
+        return readByte() & 0xff;
+    }
+
+    public boolean readBoolean() throws EOFException {
+        return readByte() != 0;
+    }
+
+    public int readUnsignedShort() throws EOFException {
+        require(2);
+        int value = ((data[position] & 0xff) << 8) | (data[position + 1] & 0xff);
+        position += 2;
+        return value;
+    }
+
+    public int readInt() throws EOFException {
+        require(4);
+        byte[] d = data;
+        int p = position;
+        int value = ((d[p] & 0xff) << 24) | ((d[p + 1] & 0xff) << 16) | ((d[p + 2] & 0xff) << 8) | (d[p + 3] & 0xff);
+        position = p + 4;
+        return value;
+    }
+
+    public long readLong() throws EOFException {
+        return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    public double readDouble() throws EOFException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Reads an unsigned variable length int with 7 bits per byte, least significant group first.
+     */
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt too long");
+    }
+
+    /**
+     * Reads an unsigned variable length long with 7 bits per byte, least significant group first.
+     */
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarLong too long");
+    }
+
+    public UUID readUUID() throws EOFException {
+        long msb = readLong();
+        long lsb = readLong();
+        return new UUID(msb, lsb);
+    }
+
+    public byte[] readBytes(int length) throws EOFException {
+        require(length);
+        byte[] result = new byte[length];
+        System.arraycopy(data, position, result, 0, length);
+        position += length;
+        return result;
+    }
+
+    /**
+     * Reads a string with a variable length int byte count followed by its standard UTF-8 encoding, as written by
+     * {@link ByteArrayWriter#writeString(String)}. Unlike a standard decoder, unpaired surrogates encoded with three
+     * bytes (0xED followed by 0xA0 to 0xBF) are decoded to the surrogate char instead of being replaced.
+     */
+    public String readString() throws IOException {
+        int length = readVarInt();
+        require(length);
+        byte[] d = data;
+        int start = position;
+        int end = start + length;
+        position = end;
+        for (int p = start; p < end - 1; p++) {
+            if (d[p] == (byte) 0xed && (d[p + 1] & 0xff) >= 0xa0) {
+                return readStringWithSurrogates(d, start, end);
+            }
+        }
+        return new String(d, start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes UTF-8 that contains unpaired surrogates encoded with three bytes, which the standard decoder replaces.
+     */
+    private String readStringWithSurrogates(byte[] d, int start, int end) throws IOException {
+        if (chars.length < end - start) {
+            chars = new char[Math.max(end - start, chars.length * 2)];
+        }
+        char[] c = chars;
+        int count = 0;
+        int p = start;
+        while (p < end) {
+            int b = d[p] & 0xff;
+            int size = b < 0x80 ? 1 : b < 0xc0 ? 0 : b < 0xe0 ? 2 : b < 0xf0 ? 3 : b < 0xf8 ? 4 : 0;
+            if (size == 0 || p + size > end) {
+                throw new UTFDataFormatException("malformed input around byte " + (p - start));
+            }
+            int cp = size == 1 ? b : b & (0xff >> (size + 1));
+            for (int i = 1; i < size; i++) {
+                int next = d[p + i];
+                if ((next & 0xc0) != 0x80) {
+                    throw new UTFDataFormatException("malformed input around byte " + (p - start));
+                }
+                cp = (cp << 6) | (next & 0x3f);
+            }
+            if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                if (cp > Character.MAX_CODE_POINT) {
+                    throw new UTFDataFormatException("malformed input around byte " + (p - start));
+                }
+                c[count++] = Character.highSurrogate(cp);
+                c[count++] = Character.lowSurrogate(cp);
+            } else {
+                c[count++] = (char) cp;
+            }
+            p += size;
+        }
+        return new String(c, 0, count);
+    }
+
+    /**
+     * Reads a string in modified UTF-8 format, as written by {@link java.io.DataOutputStream#writeUTF(String)}.
+     */
+    public String readUTF() throws IOException {
+        int length = readUnsignedShort();
+        require(length);
+        byte[] d = data;
+        int start = position;
+        int end = start + length;
+        int p = start;
+        while (p < end && d[p] >= 0) {
+            p++;
+        }
+        if (p == end) {
+            position = end;
+            return new String(d, start, length, StandardCharsets.ISO_8859_1);
+        }
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        char[] c = chars;
+        int count = 0;
+        for (int i = start; i < p; i++) {
+            c[count++] = (char) d[i];
+        }
+        while (p < end) {
+            int b = d[p] & 0xff;
+            switch (b >> 4) {
+                case 0, 1, 2, 3, 4, 5, 6, 7 -> {
+                    p++;
+                    c[count++] = (char) b;
+                }
+                case 12, 13 -> {
+                    if (p + 2 > end) {
+                        throw new UTFDataFormatException("malformed input: partial character at end");
+                    }
+                    int b2 = d[p + 1];
+                    if ((b2 & 0xc0) != 0x80) {
+                        throw new UTFDataFormatException("malformed input around byte " + (p - start));
+                    }
+                    c[count++] = (char) (((b & 0x1f) << 6) | (b2 & 0x3f));
+                    p += 2;
+                }
+                case 14 -> {
+                    if (p + 3 > end) {
+                        throw new UTFDataFormatException("malformed input: partial character at end");
+                    }
+                    int b2 = d[p + 1];
+                    int b3 = d[p + 2];
+                    if ((b2 & 0xc0) != 0x80 || (b3 & 0xc0) != 0x80) {
+                        throw new UTFDataFormatException("malformed input around byte " + (p - start));
+                    }
+                    c[count++] = (char) (((b & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f));
+                    p += 3;
+                }
+                default -> throw new UTFDataFormatException("malformed input around byte " + (p - start));
+            }
+        }
+        position = end;
+        return new String(c, 0, count);
+    }
+}
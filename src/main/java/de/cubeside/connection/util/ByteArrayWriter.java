@@ -0,0 +1,158 @@
+package de.cubeside.connection.util;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A growable byte buffer that can be reset and reused, the writing counterpart of {@link ByteArrayReader}. Strings are
+ * encoded as standard UTF-8 directly into the buffer. Unpaired surrogates, which UTF-8 can not represent, are encoded
+ * with three bytes like all other chars, so {@link ByteArrayReader#readString()} returns the same string. Not thread safe.
+ */
+public class ByteArrayWriter {
+    private byte[] buffer;
+    private int position;
+
+    public ByteArrayWriter() {
+        this(256);
+    }
+
+    public ByteArrayWriter(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Discards the written data, keeping the buffer.
+     */
+    public ByteArrayWriter reset() {
+        position = 0;
+        return this;
+    }
+
+    public int size() {
+        return position;
+    }
+
+    /**
+     * @return a copy of the written data
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void ensureCapacity(int count) {
+        if (buffer.length - position < count) {
+            buffer = Arrays.copyOf(buffer, Math.max(position + count, buffer.length * 2));
+        }
+    }
+
+    public void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) b;
+    }
+
+    public void writeBoolean(boolean b) {
+        writeByte(b ? 1 : 0);
+    }
+
+    public void writeInt(int v) {
+        ensureCapacity(4);
+        byte[] b = buffer;
+        int p = position;
+        b[p] = (byte) (v >>> 24);
+        b[p + 1] = (byte) (v >>> 16);
+        b[p + 2] = (byte) (v >>> 8);
+        b[p + 3] = (byte) v;
+        position = p + 4;
+    }
+
+    public void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    public void writeDouble(double v) {
+        writeLong(Double.doubleToRawLongBits(v));
+    }
+
+    /**
+     * Writes an unsigned variable length int with 7 bits per byte, least significant group first.
+     */
+    public void writeVarInt(int v) {
+        ensureCapacity(5);
+        while ((v & ~0x7f) != 0) {
+            buffer[position++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buffer[position++] = (byte) v;
+    }
+
+    /**
+     * Writes an unsigned variable length long with 7 bits per byte, least significant group first.
+     */
+    public void writeVarLong(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buffer[position++] = (byte) v;
+    }
+
+    public void writeUUID(UUID uuid) {
+        writeLong(uuid.getMostSignificantBits());
+        writeLong(uuid.getLeastSignificantBits());
+    }
+
+    public void writeBytes(byte[] data) {
+        ensureCapacity(data.length);
+        System.arraycopy(data, 0, buffer, position, data.length);
+        position += data.length;
+    }
+
+    /**
+     * Writes a string with a variable length int byte count followed by its standard UTF-8 encoding. Unpaired surrogates
+     * are not valid UTF-8 and are written with three bytes like other chars of the basic plane, instead of the '?' that
+     * {@link String#getBytes(java.nio.charset.Charset)} writes.
+     */
+    public void writeString(String s) {
+        int length = s.length();
+        int utfLength = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    utfLength++;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    utfLength += 2; // 4 bytes for 2 chars
+                    i++;
+                } else {
+                    utfLength += 2;
+                }
+            }
+        }
+        writeVarInt(utfLength);
+        ensureCapacity(utfLength);
+        byte[] b = buffer;
+        int p = position;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xc0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[p++] = (byte) (0xf0 | (cp >> 18));
+                b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                b[p++] = (byte) (0xe0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        position = p;
+    }
+}
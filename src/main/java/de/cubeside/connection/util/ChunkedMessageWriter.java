@@ -0,0 +1,82 @@
+package de.cubeside.connection.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Writes a list of entries as one or more messages of bounded size. Every message starts with the message type, every
+ * entry is preceded by <code>true</code> and every message ends with <code>false</code>, so each chunk is a complete
+ * message on its own. A chunk is sent as soon as it reaches the maximum size after an entry.
+ */
+public class ChunkedMessageWriter {
+    private final int type;
+    private final int maxChunkSize;
+    private final Consumer<byte[]> target;
+
+    private ByteArrayOutputStream baos;
+    private DataOutputStream dos;
+    private int sentChunks;
+
+    public ChunkedMessageWriter(int type, int maxChunkSize, Consumer<byte[]> target) {
+        this.type = type;
+        this.maxChunkSize = maxChunkSize;
+        this.target = target;
+    }
+
+    /**
+     * Starts a new entry.
+     *
+     * @return the stream the entry has to be written to
+     */
+    public DataOutputStream beginEntry() throws IOException {
+        if (dos == null) {
+            startChunk();
+        }
+        dos.writeBoolean(true);
+        return dos;
+    }
+
+    /**
+     * Ends the current entry and sends the chunk if it is large enough.
+     */
+    public void endEntry() throws IOException {
+        if (baos.size() >= maxChunkSize) {
+            sendChunk();
+        }
+    }
+
+    /**
+     * Sends the last chunk.
+     *
+     * @param sendIfEmpty
+     *            if an empty message should be sent if there were no entries at all
+     * @return the number of chunks that were sent
+     */
+    public int finish(boolean sendIfEmpty) throws IOException {
+        if (dos == null && sendIfEmpty && sentChunks == 0) {
+            startChunk();
+        }
+        if (dos != null) {
+            sendChunk();
+        }
+        return sentChunks;
+    }
+
+    private void startChunk() throws IOException {
+        baos = new ByteArrayOutputStream(Math.min(maxChunkSize + 1024, 8192));
+        dos = new DataOutputStream(baos);
+        dos.writeByte(type);
+    }
+
+    private void sendChunk() throws IOException {
+        dos.writeBoolean(false);
+        dos.close();
+        byte[] data = baos.toByteArray();
+        baos = null;
+        dos = null;
+        sentChunks++;
+        target.accept(data);
+    }
+}
@@ -0,0 +1,113 @@
+package de.cubeside.connection.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses payloads with deflate. Compressed payloads start with the flag byte {@link #FLAG_DEFLATE}, followed by the
+ * uncompressed length as int and the compressed data.
+ */
+public final class Compression {
+    public static final int FLAG_DEFLATE = 1;
+    /**
+     * The largest uncompressed length accepted from other servers.
+     */
+    public static final int MAX_UNCOMPRESSED_LENGTH = 16 * 1024 * 1024;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private Compression() {
+    }
+
+    /**
+     * Compresses the data into a {@link #FLAG_DEFLATE} frame if it is at least threshold bytes long and gets smaller by
+     * compressing.
+     *
+     * @return the frame, or null if the data is not compressed
+     */
+    public static byte[] compress(byte[] data, int threshold) {
+        if (data.length < threshold) {
+            return null;
+        }
+        byte[] compressed = deflate(data, 5);
+        if (compressed != null) {
+            compressed[0] = FLAG_DEFLATE;
+            writeInt(compressed, 1, data.length);
+        }
+        return compressed;
+    }
+
+    /**
+     * Compresses the data into a new array, leaving <code>headerSize</code> bytes at the start of the array for the
+     * caller.
+     *
+     * @return the compressed data, or null if compressing does not make it smaller
+     */
+    public static byte[] deflate(byte[] data, int headerSize) {
+        Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] result = new byte[headerSize + data.length];
+            int length = headerSize;
+            while (!deflater.finished()) {
+                if (length == result.length) {
+                    return null;
+                }
+                length += deflater.deflate(result, length, result.length - length);
+            }
+            return Arrays.copyOf(result, length);
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Decompresses data compressed by {@link #deflate(byte[], int)}.
+     *
+     * @throws IOException
+     *             if the data is invalid, or the length is negative or larger than {@link #MAX_UNCOMPRESSED_LENGTH}
+     */
+    public static byte[] inflate(ByteBuffer compressed, int uncompressedLength) throws IOException {
+        if (uncompressedLength < 0 || uncompressedLength > MAX_UNCOMPRESSED_LENGTH) {
+            throw new IOException("Invalid uncompressed length " + uncompressedLength);
+        }
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(compressed);
+            byte[] result = new byte[uncompressedLength];
+            int length = 0;
+            while (length < uncompressedLength) {
+                int inflated = inflater.inflate(result, length, uncompressedLength - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed data is shorter than expected");
+                }
+                length += inflated;
+            }
+            if (!inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                throw new IOException("Compressed data is longer than expected");
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    public static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    public static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,149 @@
+package de.cubeside.connection.util;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel. Timeouts are put into the bucket of their deadline tick, so scheduling, cancelling and advancing
+ * by one tick take constant time no matter how many timeouts are pending. Deadlines are rounded up to the next tick.
+ * All methods may be called from any thread.
+ */
+public class HashedTimerWheel<T> {
+    public static final class Timeout<T> {
+        private final T task;
+        private final long deadline;
+        private long rounds;
+        private int bucket = -1;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public T getTask() {
+            return task;
+        }
+
+        /**
+         * @return the deadline in milliseconds, as passed to {@link HashedTimerWheel#schedule(Object, long)}
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final Timeout<T>[] buckets;
+    private final int mask;
+    private final long tickMillis;
+    private final long startMillis;
+    /**
+     * The next tick to process.
+     */
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param wheelSize
+     *            the number of buckets, must be a power of two
+     * @param tickMillis
+     *            the duration of one tick
+     * @param nowMillis
+     *            the current time, all deadlines use the same clock
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimerWheel(int wheelSize, long tickMillis, long nowMillis) {
+        Preconditions.checkArgument(wheelSize > 0 && Integer.bitCount(wheelSize) == 1, "wheelSize must be a power of two");
+        Preconditions.checkArgument(tickMillis > 0, "tickMillis must be positive");
+        this.buckets = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+        this.tickMillis = tickMillis;
+        this.startMillis = nowMillis;
+    }
+
+    /**
+     * Schedules a task. Deadlines in the past expire with the next tick.
+     */
+    public synchronized Timeout<T> schedule(T task, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<>(task, deadlineMillis);
+        long tick = Math.max(currentTick, (deadlineMillis - startMillis + tickMillis - 1) / tickMillis);
+        timeout.rounds = (tick - currentTick) / buckets.length;
+        timeout.bucket = (int) (tick & mask);
+        timeout.next = buckets[timeout.bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[timeout.bucket] = timeout;
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels a timeout.
+     *
+     * @return true if the timeout was pending, false if it already expired or was cancelled
+     */
+    public synchronized boolean cancel(Timeout<T> timeout) {
+        if (timeout.bucket < 0) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the given time and calls the action for all tasks that expired, in the calling thread and
+     * without holding the lock of the wheel.
+     *
+     * @return the number of expired tasks
+     */
+    public int advance(long nowMillis, Consumer<T> action) {
+        ArrayList<T> expired = new ArrayList<>();
+        synchronized (this) {
+            long targetTick = (nowMillis - startMillis) / tickMillis;
+            while (currentTick <= targetTick) {
+                if (size == 0) {
+                    currentTick = targetTick + 1;
+                    break;
+                }
+                Timeout<T> timeout = buckets[(int) (currentTick & mask)];
+                while (timeout != null) {
+                    Timeout<T> next = timeout.next;
+                    if (timeout.rounds == 0) {
+                        unlink(timeout);
+                        expired.add(timeout.task);
+                    } else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+                currentTick++;
+            }
+        }
+        for (T task : expired) {
+            action.accept(task);
+        }
+        return expired.size();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+}
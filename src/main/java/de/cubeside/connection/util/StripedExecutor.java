@@ -0,0 +1,98 @@
+package de.cubeside.connection.util;
+
+import com.google.common.base.Preconditions;
+import java.util.function.Consumer;
+
+/**
+ * Runs tasks on a fixed number of worker threads. Every task has a key, and all tasks with equal keys are run by the same
+ * worker in the order they were added, so tasks are ordered per key while tasks of different keys run in parallel. Each
+ * worker runs a {@link TaskLoop} over its own {@link TaskQueue}.
+ */
+public class StripedExecutor {
+    private static final int TASK_BATCH_SIZE = 256;
+
+    private final TaskQueue[] queues;
+    private final TaskLoop[] loops;
+    private final Histogram waitTime = new Histogram();
+    private final Histogram runTime = new Histogram();
+
+    /**
+     * @param name
+     *            the name prefix of the worker threads
+     * @param threads
+     *            the number of workers
+     * @param virtualThreads
+     *            whether the workers are virtual threads
+     * @param exceptionHandler
+     *            called on the worker thread with every exception thrown by a task
+     */
+    public StripedExecutor(String name, int threads, boolean virtualThreads, Consumer<Throwable> exceptionHandler) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        Preconditions.checkNotNull(exceptionHandler, "exceptionHandler");
+        queues = new TaskQueue[threads];
+        loops = new TaskLoop[threads];
+        Thread.Builder builder = virtualThreads ? Thread.ofVirtual().name(name + "-", 0) : Thread.ofPlatform().name(name + "-", 0).daemon();
+        for (int i = 0; i < threads; i++) {
+            TaskQueue queue = new TaskQueue();
+            queues[i] = queue;
+            // all workers record into the same histograms
+            loops[i] = new TaskLoop(queue, TASK_BATCH_SIZE, waitTime, runTime, exceptionHandler);
+            builder.start(loops[i]);
+        }
+    }
+
+    /**
+     * Adds a task to the worker of the key. May be called from any thread.
+     */
+    public void execute(Object key, Runnable task) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        queues[(h & Integer.MAX_VALUE) % queues.length].add(task);
+    }
+
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * @return the approximate number of tasks waiting in all queues
+     */
+    public long getQueueSize() {
+        long size = 0;
+        for (TaskQueue queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of tasks that were run since this executor was created
+     */
+    public long getTakenCount() {
+        long taken = 0;
+        for (TaskQueue queue : queues) {
+            taken += queue.getTakenCount();
+        }
+        return taken;
+    }
+
+    /**
+     * @return the nanoseconds tasks waited in the queue before they were run
+     */
+    public Histogram getWaitTime() {
+        return waitTime;
+    }
+
+    public Histogram getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * Lets the workers exit once they have run all tasks that were added before.
+     */
+    public void shutdown() {
+        for (TaskLoop loop : loops) {
+            loop.stop();
+        }
+    }
+}
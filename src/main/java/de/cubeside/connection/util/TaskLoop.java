@@ -0,0 +1,64 @@
+package de.cubeside.connection.util;
+
+import java.util.function.Consumer;
+
+/**
+ * The consumer of a {@link TaskQueue}: runs the tasks in batches on the thread that runs the loop, until it is stopped and
+ * the queue is empty. Records how long each task waited in the queue and how long it ran.
+ */
+public class TaskLoop implements Runnable {
+    private final TaskQueue tasks;
+    private final int batchSize;
+    private final Histogram waitTime;
+    private final Histogram runTime;
+    private final Consumer<Throwable> exceptionHandler;
+    private volatile boolean running = true;
+
+    /**
+     * @param exceptionHandler
+     *            called on the loop thread with every exception thrown by a task
+     */
+    public TaskLoop(TaskQueue tasks, int batchSize, Histogram waitTime, Histogram runTime, Consumer<Throwable> exceptionHandler) {
+        this.tasks = tasks;
+        this.batchSize = batchSize;
+        this.waitTime = waitTime;
+        this.runTime = runTime;
+        this.exceptionHandler = exceptionHandler;
+    }
+
+    @Override
+    public void run() {
+        Runnable[] batch = new Runnable[batchSize];
+        long[] addedAt = new long[batchSize];
+        while (true) {
+            int count = tasks.drain(batch, addedAt, batchSize);
+            if (count == 0) {
+                if (!running) {
+                    return;
+                }
+                tasks.await();
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                Runnable task = batch[i];
+                batch[i] = null;
+                long start = System.nanoTime();
+                waitTime.record(start - addedAt[i]);
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    exceptionHandler.accept(t);
+                }
+                runTime.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Stops the loop once all tasks in the queue have run. May be called from any thread.
+     */
+    public void stop() {
+        running = false;
+        tasks.wakeUp();
+    }
+}
@@ -0,0 +1,129 @@
+package de.cubeside.connection.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An unbounded multi-producer/single-consumer queue of tasks. Adding a task never blocks, the consumer takes the tasks
+ * in batches and parks while the queue is empty.
+ */
+public class TaskQueue {
+    private static final class Node {
+        private Runnable task;
+        private final long addedAt;
+        private volatile Node next;
+
+        private Node(Runnable task, long addedAt) {
+            this.task = task;
+            this.addedAt = addedAt;
+        }
+    }
+
+    private final AtomicReference<Node> tail;
+    private Node head;
+
+    private volatile Thread consumer;
+    private volatile boolean parked;
+
+    private final LongAdder added = new LongAdder();
+    private volatile long taken;
+
+    public TaskQueue() {
+        head = new Node(null, 0);
+        tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * Adds a task to the queue. May be called from any thread.
+     */
+    public void add(Runnable task) {
+        Node node = new Node(task, System.nanoTime());
+        Node previous = tail.getAndSet(node);
+        previous.next = node;
+        added.increment();
+        if (parked) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Moves up to <code>max</code> tasks into the given array. Must only be called by the consumer thread.
+     *
+     * @return the number of tasks that were moved
+     */
+    public int drain(Runnable[] batch, int max) {
+        return drain(batch, null, max);
+    }
+
+    /**
+     * Moves up to <code>max</code> tasks into the given array and the {@link System#nanoTime()} at which they were added
+     * into the second array, if it is not null. Must only be called by the consumer thread.
+     *
+     * @return the number of tasks that were moved
+     */
+    public int drain(Runnable[] batch, long[] addedAt, int max) {
+        if (consumer == null) {
+            consumer = Thread.currentThread();
+        }
+        int count = 0;
+        Node current = head;
+        Node next;
+        while (count < max && (next = current.next) != null) {
+            if (addedAt != null) {
+                addedAt[count] = next.addedAt;
+            }
+            batch[count++] = next.task;
+            next.task = null;
+            current = next;
+        }
+        if (count > 0) {
+            head = current;
+            taken += count;
+        }
+        return count;
+    }
+
+    /**
+     * Parks the consumer thread until a task is added or {@link #wakeUp()} is called. Must only be called by the consumer
+     * thread after it has called {@link #drain(Runnable[], int)} at least once. May return spuriously.
+     */
+    public void await() {
+        parked = true;
+        if (head.next == null) {
+            LockSupport.park(this);
+        }
+        parked = false;
+    }
+
+    /**
+     * Wakes up the consumer thread if it is waiting in {@link #await()}.
+     */
+    public void wakeUp() {
+        Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return the number of tasks that were added since this queue was created
+     */
+    public long getAddedCount() {
+        return added.sum();
+    }
+
+    /**
+     * @return the number of tasks that were taken by the consumer since this queue was created
+     */
+    public long getTakenCount() {
+        return taken;
+    }
+
+    /**
+     * @return the approximate number of tasks waiting in the queue
+     */
+    public long size() {
+        return Math.max(0, added.sum() - taken);
+    }
+}
@@ -0,0 +1,44 @@
+package de.cubeside.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.cubeside.connection.util.ByteArrayReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+public class PlayerPropertiesCodecTest {
+    // three bytes per char, so exactly MAX_STRING_BYTES long
+    static final String LONGEST_VALUE = "€".repeat(PlayerPropertiesCodec.MAX_STRING_BYTES / 3);
+
+    @Test
+    public void checkLengthAcceptsLongestValue() {
+        PlayerPropertiesCodec.checkLength(LONGEST_VALUE, "value");
+        PlayerPropertiesCodec.checkLength("a".repeat(PlayerPropertiesCodec.MAX_STRING_BYTES), "value");
+    }
+
+    @Test
+    public void checkLengthRejectsValuesOver64K() {
+        assertThrows(IllegalArgumentException.class, () -> PlayerPropertiesCodec.checkLength(LONGEST_VALUE + "a", "value"));
+        assertThrows(IllegalArgumentException.class, () -> PlayerPropertiesCodec.checkLength("a".repeat(70000), "value"));
+        // modified UTF-8 encodes \0 with two bytes
+        assertThrows(IllegalArgumentException.class, () -> PlayerPropertiesCodec.checkLength("\0".repeat(PlayerPropertiesCodec.MAX_STRING_BYTES / 2 + 1), "value"));
+    }
+
+    @Test
+    public void longestValueSurvivesMultiSet() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        Map<String, String> values = Collections.singletonMap("long", LONGEST_VALUE);
+        ByteArrayReader in = new ByteArrayReader(PlayerPropertiesCodec.encodeMultiSet(Collections.singletonMap(uuid, values)));
+        assertEquals(PlayerPropertiesCodec.MESSAGE_MULTISET_PROPERTIES, in.readUnsignedByte());
+        LinkedHashMap<UUID, Map<String, String>> decoded = new LinkedHashMap<>();
+        PlayerPropertiesCodec.decodeMultiSet(in, decoded::put);
+        assertEquals(Collections.singletonMap(uuid, values), decoded);
+        assertFalse(in.hasRemaining());
+    }
+}
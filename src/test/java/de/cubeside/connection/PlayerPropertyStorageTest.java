@@ -0,0 +1,62 @@
+package de.cubeside.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PlayerPropertyStorageTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        values.put("coins", "100");
+        values.put("long", PlayerPropertiesCodecTest.LONGEST_VALUE);
+        PlayerPropertyStore store = new PlayerPropertyStore();
+        store.setAll(uuid, values);
+        Path file = directory.resolve("properties.dat");
+        assertTrue(new PlayerPropertyStorage(file).save(store, (player, property, value) -> 0));
+
+        PlayerPropertyStore loaded = new PlayerPropertyStore();
+        LinkedHashMap<UUID, Map<String, Long>> deadlines = new LinkedHashMap<>();
+        assertEquals(1, new PlayerPropertyStorage(file).load(loaded, 60000, deadlines));
+        assertEquals(values, loaded.get(uuid));
+        assertTrue(deadlines.isEmpty());
+    }
+
+    @Test
+    public void saveAndLoadDeadlines() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        UUID expiredUuid = UUID.randomUUID();
+        long deadline = System.currentTimeMillis() + 60000;
+        PlayerPropertyStore store = new PlayerPropertyStore();
+        LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        values.put("cooldown", "1");
+        values.put("expired", "2");
+        values.put("coins", "100");
+        store.setAll(uuid, values);
+        store.setAll(expiredUuid, Collections.singletonMap("expired", "3"));
+        Path file = directory.resolve("properties.dat");
+        assertTrue(new PlayerPropertyStorage(file).save(store, (player, property, value) -> property.equals("cooldown") ? deadline : property.equals("expired") ? 1 : 0));
+
+        PlayerPropertyStore loaded = new PlayerPropertyStore();
+        LinkedHashMap<UUID, Map<String, Long>> deadlines = new LinkedHashMap<>();
+        // the player with only expired properties is not loaded
+        assertEquals(1, new PlayerPropertyStorage(file).load(loaded, 60000, deadlines));
+        LinkedHashMap<String, String> expected = new LinkedHashMap<>();
+        expected.put("cooldown", "1");
+        expected.put("coins", "100");
+        assertEquals(expected, loaded.get(uuid));
+        assertEquals(Collections.singletonMap(uuid, Collections.singletonMap("cooldown", deadline)), deadlines);
+    }
+}
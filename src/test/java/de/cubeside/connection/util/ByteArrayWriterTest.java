@@ -0,0 +1,92 @@
+package de.cubeside.connection.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+public class ByteArrayWriterTest {
+    private static final int[] INTS = { 0, 1, 0x7f, 0x80, 0x3fff, 0x4000, 0x1fffff, 0x200000, 0xfffffff, 0x10000000, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+    private static final long[] LONGS = { 0, 1, 0x7f, 0x80, Integer.MAX_VALUE, 0xffffffffL, 1L << 56, Long.MAX_VALUE, -1, Long.MIN_VALUE };
+    private static final String[] STRINGS = { "", "coins", "ä", "߿", "ࠀ", "€100", "￿", "😀", "a😀b", "\ud83d", "\ude00", "\ude00\ud83d", "x\ud83dy", "\ud83d😀", "mixed ä € 😀 \ud800" };
+
+    @Test
+    public void varIntRoundTrip() throws IOException {
+        ByteArrayWriter out = new ByteArrayWriter(1);
+        for (int v : INTS) {
+            out.writeVarInt(v);
+        }
+        ByteArrayReader in = new ByteArrayReader(out.toByteArray());
+        for (int v : INTS) {
+            assertEquals(v, in.readVarInt());
+        }
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void varLongRoundTrip() throws IOException {
+        ByteArrayWriter out = new ByteArrayWriter(1);
+        for (long v : LONGS) {
+            out.writeVarLong(v);
+        }
+        ByteArrayReader in = new ByteArrayReader(out.toByteArray());
+        for (long v : LONGS) {
+            assertEquals(v, in.readVarLong());
+        }
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void varIntLength() {
+        ByteArrayWriter out = new ByteArrayWriter();
+        out.writeVarInt(0x7f);
+        assertEquals(1, out.size());
+        out.reset().writeVarInt(0x80);
+        assertEquals(2, out.size());
+        out.reset().writeVarInt(-1);
+        assertEquals(5, out.size());
+    }
+
+    @Test
+    public void stringRoundTrip() throws IOException {
+        ByteArrayWriter out = new ByteArrayWriter(1);
+        for (String s : STRINGS) {
+            out.writeString(s);
+        }
+        ByteArrayReader in = new ByteArrayReader(out.toByteArray());
+        for (String s : STRINGS) {
+            assertEquals(s, in.readString());
+        }
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void stringIsStandardUtf8() throws IOException {
+        for (String s : STRINGS) {
+            if (hasUnpairedSurrogate(s)) {
+                continue;
+            }
+            ByteArrayWriter out = new ByteArrayWriter();
+            out.writeString(s);
+            ByteArrayReader in = new ByteArrayReader(out.toByteArray());
+            byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+            assertEquals(expected.length, in.readVarInt());
+            assertArrayEquals(expected, in.readBytes(in.remaining()));
+        }
+    }
+
+    private static boolean hasUnpairedSurrogate(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}